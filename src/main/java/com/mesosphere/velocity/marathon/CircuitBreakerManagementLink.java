@@ -0,0 +1,58 @@
+package com.mesosphere.velocity.marathon;
+
+import com.mesosphere.velocity.marathon.util.CircuitBreaker;
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.util.List;
+
+/**
+ * Shows the state of the Marathon and DC/OS circuit breakers under "Manage Jenkins", and allows administrators
+ * to close a breaker once the endpoint is available again.
+ */
+@Extension
+public class CircuitBreakerManagementLink extends ManagementLink {
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "marathon-circuit-breakers";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Marathon Circuit Breakers";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Marathon and DC/OS endpoints that are failing fast after consecutive errors.";
+    }
+
+    public List<CircuitBreaker> getBreakers() {
+        return CircuitBreaker.getAll();
+    }
+
+    /**
+     * Close the breaker for endpoint.
+     *
+     * @param endpoint endpoint of the breaker
+     * @return redirect back to the overview
+     */
+    @RequirePOST
+    public HttpResponse doReset(@QueryParameter final String endpoint) {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        for (final CircuitBreaker breaker : CircuitBreaker.getAll()) {
+            if (breaker.getEndpoint().equals(endpoint)) breaker.reset();
+        }
+        return HttpResponses.redirectToDot();
+    }
+}
@@ -0,0 +1,486 @@
+package com.mesosphere.velocity.marathon;
+
+import com.mesosphere.velocity.marathon.exceptions.MarathonDeploymentException;
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileMissingException;
+import com.mesosphere.velocity.marathon.fields.MarathonLabel;
+import com.mesosphere.velocity.marathon.fields.MarathonUri;
+import com.mesosphere.velocity.marathon.fields.MarathonVars;
+import com.mesosphere.velocity.marathon.interfaces.AppConfig;
+import com.mesosphere.velocity.marathon.interfaces.MarathonBuilder;
+import com.mesosphere.velocity.marathon.util.AppLock;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import com.mesosphere.velocity.marathon.util.MarathonExecutor;
+import com.mesosphere.velocity.marathon.util.RetryPolicy;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import mesosphere.marathon.client.MarathonException;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deploys several separate Marathon applications from one pipeline step. Each application is read, built and
+ * updated on the {@link MarathonExecutor}, with at most {@link #getParallelism()} deployments running at once.
+ * <p>
+ * The step returns a map of application id to result, each holding "status" (SUCCESS or FAILURE), "deploymentId"
+ * and "message".
+ */
+public class MarathonParallelStep extends AbstractStepImpl {
+    /**
+     * Default number of applications deployed at once.
+     */
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private final String              url;
+    private       Map<String, String> apps;
+    private       String              credentialsId;
+    private       boolean             forceUpdate;
+    private       boolean             waitForDeployment;
+    private       boolean             skipIfUnchanged;
+    private       boolean             coalesce;
+    private       boolean             expandDefinition;
+    private       long                deploymentTimeout;
+    private       int                 parallelism;
+
+    @DataBoundConstructor
+    public MarathonParallelStep(final String url) {
+        this.url = url != null ? MarathonBuilderUtils.rmSlashFromUrl(url) : null;
+        this.apps = new LinkedHashMap<>();
+        this.deploymentTimeout = MarathonBuilderUtils.DEPLOYMENT_TIMEOUT;
+        this.parallelism = DEFAULT_PARALLELISM;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get the applications to deploy.
+     *
+     * @return map of application id to application definition file
+     */
+    public Map<String, String> getApps() {
+        return Collections.unmodifiableMap(apps);
+    }
+
+    /**
+     * Set the applications to deploy. The application id overrides the id within the definition file.
+     *
+     * @param apps map of application id to application definition file
+     */
+    public void setApps(final Map<String, String> apps) {
+        this.apps = new LinkedHashMap<>(apps);
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(final String credentialsId) {
+        this.credentialsId = credentialsId;
+    }
+
+    public boolean getForceUpdate() {
+        return forceUpdate;
+    }
+
+    @DataBoundSetter
+    public void setForceUpdate(final boolean forceUpdate) {
+        this.forceUpdate = forceUpdate;
+    }
+
+    public boolean getSkipIfUnchanged() {
+        return skipIfUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setSkipIfUnchanged(final boolean skipIfUnchanged) {
+        this.skipIfUnchanged = skipIfUnchanged;
+    }
+
+    public boolean getCoalesce() {
+        return coalesce;
+    }
+
+    @DataBoundSetter
+    public void setCoalesce(final boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    public boolean getExpandDefinition() {
+        return expandDefinition;
+    }
+
+    @DataBoundSetter
+    public void setExpandDefinition(final boolean expandDefinition) {
+        this.expandDefinition = expandDefinition;
+    }
+
+    public boolean getWaitForDeployment() {
+        return waitForDeployment;
+    }
+
+    @DataBoundSetter
+    public void setWaitForDeployment(final boolean waitForDeployment) {
+        this.waitForDeployment = waitForDeployment;
+    }
+
+    public long getDeploymentTimeout() {
+        return deploymentTimeout > 0 ? deploymentTimeout : MarathonBuilderUtils.DEPLOYMENT_TIMEOUT;
+    }
+
+    @DataBoundSetter
+    public void setDeploymentTimeout(final long deploymentTimeout) {
+        this.deploymentTimeout = deploymentTimeout;
+    }
+
+    /**
+     * Get the maximum number of applications deployed at once.
+     *
+     * @return number of concurrent deployments
+     */
+    public int getParallelism() {
+        return parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(final int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+        /**
+         * Name of the step argument holding the map of application ids to definition files.
+         */
+        static final String APPS = "apps";
+
+        @Inject
+        private MarathonRecorder.DescriptorImpl delegate;
+
+        public DescriptorImpl() {
+            super(MarathonParallelStepExecution.class);
+        }
+
+        /**
+         * "apps" is a map, which cannot be bound to a step parameter; it is taken out of the arguments and set
+         * separately.
+         */
+        @Override
+        public Step newInstance(final Map<String, Object> arguments) throws Exception {
+            final Map<String, Object> remaining = new HashMap<>(arguments);
+            final Object              apps      = remaining.remove(APPS);
+            if (!(apps instanceof Map) || ((Map<?, ?>) apps).isEmpty()) {
+                throw new IllegalArgumentException("marathonParallel requires a map of application ids to definition files in \"apps\"");
+            }
+
+            final Map<String, String> definitions = new LinkedHashMap<>();
+            for (final Map.Entry<?, ?> app : ((Map<?, ?>) apps).entrySet()) {
+                definitions.put(String.valueOf(app.getKey()), app.getValue() != null ? String.valueOf(app.getValue()) : null);
+            }
+
+            final MarathonParallelStep step = (MarathonParallelStep) super.newInstance(remaining);
+            step.setApps(definitions);
+            return step;
+        }
+
+        @Override
+        public Map<String, Object> defineArguments(final Step step) throws UnsupportedOperationException {
+            final Map<String, Object> arguments = new LinkedHashMap<>(super.defineArguments(step));
+            arguments.put(APPS, ((MarathonParallelStep) step).getApps());
+            return arguments;
+        }
+
+        public FormValidation doCheckUrl(@QueryParameter final String value) {
+            return delegate.doCheckUrl(value);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "marathonParallel";
+        }
+
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Marathon Parallel Deployment";
+        }
+
+        public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item project) {
+            return delegate.doFillCredentialsIdItems(project);
+        }
+    }
+
+    /**
+     * Starts up to {@link #getParallelism()} workers on the {@link MarathonExecutor}. Each worker takes applications
+     * off a shared queue until it is empty; the last worker to finish completes the step.
+     */
+    public static class MarathonParallelStepExecution extends AbstractStepExecutionImpl {
+        private static final long serialVersionUID = -1907012497216548043L;
+
+        @StepContextParameter
+        private transient TaskListener         listener;
+        @StepContextParameter
+        private transient FilePath             ws;
+        @StepContextParameter
+        private transient EnvVars              envVars;
+        @StepContextParameter
+        private transient Run                  run;
+        @Inject
+        private transient MarathonParallelStep step;
+
+        private transient List<Future<?>>      workers;
+        private transient Set<MarathonBuilder> builders;
+        /**
+         * Set by whichever completes the step first, the last worker or {@link #stop(Throwable)}.
+         */
+        private transient AtomicBoolean        completed;
+
+        @Override
+        public boolean start() throws Exception {
+            final String url = step.getUrl();
+            if (url == null || url.trim().isEmpty()) throw new AbortException("[Marathon] url is required.");
+
+            final StepContext                      context = getContext();
+            final Queue<String>                    pending = new ConcurrentLinkedQueue<>(step.apps.keySet());
+            final Map<String, Map<String, String>> results = Collections.synchronizedMap(new LinkedHashMap<String, Map<String, String>>());
+            final int                              count   = Math.min(step.getParallelism(), pending.size());
+            final AtomicInteger                    running = new AtomicInteger(count);
+
+            // keep the order of the step arguments in the results
+            for (final String id : step.apps.keySet()) results.put(id, null);
+
+            builders = Collections.newSetFromMap(new ConcurrentHashMap<MarathonBuilder, Boolean>());
+            completed = new AtomicBoolean();
+            workers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                // done() also runs for workers that are cancelled before they started, so every worker counts down
+                final FutureTask<Void> worker = new FutureTask<Void>(() -> {
+                    String id;
+                    while (!Thread.currentThread().isInterrupted() && (id = pending.poll()) != null) {
+                        results.put(id, deploy(id, step.apps.get(id)));
+                    }
+                }, null) {
+                    @Override
+                    protected void done() {
+                        if (running.decrementAndGet() == 0) finish(context, results);
+                    }
+                };
+                workers.add(worker);
+                MarathonExecutor.get().execute(worker);
+            }
+
+            if (count == 0) finish(context, results);
+            return false;
+        }
+
+        @Override
+        public void stop(@Nonnull final Throwable cause) throws Exception {
+            if (workers != null) {
+                for (final Future<?> worker : workers) worker.cancel(true);
+            }
+            if (builders != null) {
+                for (final MarathonBuilder builder : builders) builder.abort();
+            }
+
+            if (completed == null || completed.compareAndSet(false, true)) getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            // the deployments ran on threads that did not survive the restart
+            completed = new AtomicBoolean(true);
+            getContext().onFailure(new AbortException("[Marathon] Deployments were interrupted by a Jenkins restart."));
+        }
+
+        private void finish(final StepContext context, final Map<String, Map<String, String>> results) {
+            if (!completed.compareAndSet(false, true)) return;
+
+            final LinkedHashMap<String, Map<String, String>> collected = new LinkedHashMap<>();
+            boolean                                          failed    = false;
+            synchronized (results) {
+                for (final Map.Entry<String, Map<String, String>> result : results.entrySet()) {
+                    final Map<String, String> value = result.getValue() != null ? result.getValue()
+                            : result(Result.NOT_BUILT, null, "Deployment was not started.");
+                    failed |= !Result.SUCCESS.toString().equals(value.get("status"));
+                    collected.put(result.getKey(), value);
+                }
+            }
+
+            if (failed) run.setResult(Result.FAILURE);
+            context.onSuccess(collected);
+        }
+
+        /**
+         * Read, build and update a single application, and wait for its deployment if configured.
+         *
+         * @param id       Marathon application id
+         * @param filename application definition file
+         * @return result of the deployment
+         */
+        private Map<String, String> deploy(final String id, final String filename) {
+            final String prefix = "[Marathon] [" + id + "] ";
+            try {
+                final MarathonBuilder builder = MarathonBuilder
+                        .getBuilder(new ParallelAppConfig(step, id))
+                        .setEnvVars(envVars)
+                        .setWorkspace(ws);
+                builders.add(builder);
+                try {
+                    builder.render(filename, MarathonBuilderUtils.MARATHON_RENDERED_JSON.replace(".json", "-" + renderedName(id) + ".json"));
+                    try (AppLock.Lease ignored = AppLock.acquire(builder, listener.getLogger())) {
+                        RetryPolicy.getDefault().update(builder, listener.getLogger());
+
+                        if (builder.getSupersededBy() > 0) {
+                            listener.getLogger().println(prefix + "Superseded by #" + builder.getSupersededBy() + "; skipping update.");
+                            return result(Result.SUCCESS, null, "superseded by #" + builder.getSupersededBy());
+                        } else if (builder.isUnchanged()) {
+                            listener.getLogger().println(prefix + "Application is unchanged; skipping update.");
+                            return result(Result.SUCCESS, null, "unchanged");
+                        } else if (step.getWaitForDeployment() && builder.getDeploymentId() != null) {
+                            listener.getLogger().println(prefix + "Waiting for deployment '" + builder.getDeploymentId() + "' to finish.");
+                            builder.awaitDeployment(TimeUnit.SECONDS.toMillis(step.getDeploymentTimeout()));
+                            listener.getLogger().println(prefix + "Deployment finished.");
+                        } else {
+                            listener.getLogger().println(prefix + "Application updated.");
+                        }
+                    }
+                } finally {
+                    builders.remove(builder);
+                }
+
+                return result(Result.SUCCESS, builder.getDeploymentId(), null);
+            } catch (MarathonException | MarathonFileInvalidException | MarathonFileMissingException | MarathonDeploymentException me) {
+                listener.error(prefix + me.getMessage());
+                return result(Result.FAILURE, null, me.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result(Result.ABORTED, null, "Deployment was aborted.");
+            } catch (Exception e) {
+                listener.error(prefix + e);
+                return result(Result.FAILURE, null, e.toString());
+            }
+        }
+
+        private static Map<String, String> result(final Result status, final String deploymentId, final String message) {
+            return MarathonBuilderUtils.deploymentResult(status.toString(), deploymentId, message);
+        }
+
+        private static String renderedName(final String id) {
+            return id.replaceAll("^/+", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        }
+    }
+
+    /**
+     * Configuration for a single application deployed by {@link MarathonParallelStep}.
+     */
+    static class ParallelAppConfig implements AppConfig {
+        private final MarathonParallelStep step;
+        private final String               id;
+
+        ParallelAppConfig(final MarathonParallelStep step, final String id) {
+            this.step = step;
+            this.id = id;
+        }
+
+        @Override
+        public String getAppId() {
+            return id;
+        }
+
+        @Override
+        public String getUrl() {
+            return step.getUrl();
+        }
+
+        @Override
+        public boolean getForceUpdate() {
+            return step.getForceUpdate();
+        }
+
+        @Override
+        public String getContainerType() {
+            return null;
+        }
+
+        @Override
+        public String getDocker() {
+            return null;
+        }
+
+        @Override
+        public boolean getDockerForcePull() {
+            return false;
+        }
+
+        @Override
+        public String getCredentialsId() {
+            return step.getCredentialsId();
+        }
+
+        @Override
+        public List<MarathonUri> getUris() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<MarathonLabel> getLabels() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<MarathonVars> getEnv() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean getSkipIfUnchanged() {
+            return step.getSkipIfUnchanged();
+        }
+
+        @Override
+        public boolean getCoalesce() {
+            return step.getCoalesce();
+        }
+
+        @Override
+        public boolean getExpandDefinition() {
+            return step.getExpandDefinition();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import com.mesosphere.velocity.marathon.exceptions.AuthenticationException;
+import com.mesosphere.velocity.marathon.exceptions.MarathonDeploymentException;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileMissingException;
 import com.mesosphere.velocity.marathon.fields.MarathonLabel;
@@ -14,7 +15,9 @@ import com.mesosphere.velocity.marathon.fields.MarathonUri;
 import com.mesosphere.velocity.marathon.fields.MarathonVars;
 import com.mesosphere.velocity.marathon.interfaces.AppConfig;
 import com.mesosphere.velocity.marathon.interfaces.MarathonBuilder;
+import com.mesosphere.velocity.marathon.util.AppLock;
 import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import com.mesosphere.velocity.marathon.util.RetryPolicy;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
@@ -40,6 +43,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class MarathonRecorder extends Recorder implements AppConfig {
@@ -57,6 +61,11 @@ public class MarathonRecorder extends Recorder implements AppConfig {
     private       String              filename;
     private       String              credentialsId;
     private       boolean             forceUpdate;
+    private       boolean             waitForDeployment;
+    private       boolean             skipIfUnchanged;
+    private       boolean             coalesce;
+    private       boolean             expandDefinition;
+    private       long                deploymentTimeout;
 
     @DataBoundConstructor
     public MarathonRecorder(final String url) {
@@ -65,6 +74,7 @@ public class MarathonRecorder extends Recorder implements AppConfig {
         this.uris = new ArrayList<MarathonUri>(5);
         this.labels = new ArrayList<MarathonLabel>(5);
         this.env = new ArrayList<MarathonVars>(5);
+        this.deploymentTimeout = MarathonBuilderUtils.DEPLOYMENT_TIMEOUT;
     }
 
     public String getAppid() {
@@ -89,7 +99,8 @@ public class MarathonRecorder extends Recorder implements AppConfig {
     @Override
     public BuildStepMonitor getRequiredMonitorService() {
         /*
-         * This does not need any isolation.
+         * This does not need any isolation. Concurrent builds deploying the same application are serialized by
+         * the AppLock, which leaves builds deploying other applications alone.
          */
         return BuildStepMonitor.NONE;
     }
@@ -125,38 +136,38 @@ public class MarathonRecorder extends Recorder implements AppConfig {
             try {
                 final MarathonBuilder builder = MarathonBuilder.getBuilder(this)
                         .setEnvVars(envVars).setWorkspace(build.getWorkspace())
-                        .read(this.filename)
-                        .build().toFile();
+                        .render(this.filename, null);
 
-                // update & possible retry
-                boolean retry      = true;
-                int     retryCount = 0;
-                while (retry && retryCount < 3) {
+                try (AppLock.Lease ignored = AppLock.acquire(builder, logger)) {
+                    // update & possible retry
+                    // 409 is app already deployed and should trigger retry; other errors are build failures
+                    final RetryPolicy retryPolicy = RetryPolicy.getDefault();
                     try {
-                        builder.update();
-                        retry = false;
-                        log(logger, "Marathon application updated.");
+                        retryPolicy.update(builder, logger);
+                        if (builder.getSupersededBy() > 0) {
+                            log(logger, "Marathon application superseded by #" + builder.getSupersededBy() + "; skipping update.");
+                        } else {
+                            log(logger, builder.isUnchanged()
+                                    ? "Marathon application unchanged; skipping update."
+                                    : "Marathon application updated.");
+                        }
                     } catch (MarathonException e) {
-                        // 409 is app already deployed and should trigger retry
-                        // 4xx and 5xx errors are build failures
-                        if (e.getStatus() != 409
-                                && (e.getStatus() >= 400 && e.getStatus() < 600)) {
-                            build.setResult(Result.FAILURE);
-                            log(logger, "Failed to update Marathon application:");
-                            log(logger, e.getMessage());
-                            LOGGER.warning(e.getMessage());
-                            retry = false;
+                        build.setResult(Result.FAILURE);
+                        if (retryPolicy.isRetryable(e)) {
+                            log(logger, "Reached max retries updating Marathon application.");
                         } else {
-                            // retry.
-                            retryCount++;
-                            Thread.sleep(5000L);    // 5 seconds
+                            log(logger, "Failed to update Marathon application:");
                         }
+                        log(logger, e.getMessage());
+                        LOGGER.warning(e.getMessage());
                     }
-                }
 
-                if (retry) {
-                    build.setResult(Result.FAILURE);
-                    log(logger, "Reached max retries updating Marathon application.");
+                    if (waitForDeployment && builder.getDeploymentId() != null
+                            && (build.getResult() == null || build.getResult() == Result.SUCCESS)) {
+                        log(logger, "Waiting for deployment '" + builder.getDeploymentId() + "' to finish.");
+                        builder.awaitDeployment(TimeUnit.SECONDS.toMillis(getDeploymentTimeout()));
+                        log(logger, "Deployment finished.");
+                    }
                 }
             } catch (MarathonFileMissingException e) {
                 // "marathon.json" or whatever does not exist.
@@ -172,6 +183,10 @@ public class MarathonRecorder extends Recorder implements AppConfig {
                 build.setResult(Result.FAILURE);
                 log(logger, "Authentication to Marathon instance failed:");
                 log(logger, e.getMessage());
+            } catch (MarathonDeploymentException e) {
+                build.setResult(Result.FAILURE);
+                log(logger, "Marathon deployment did not succeed:");
+                log(logger, e.getMessage());
             }
 
         }
@@ -269,6 +284,115 @@ public class MarathonRecorder extends Recorder implements AppConfig {
         this.forceUpdate = forceUpdate;
     }
 
+    /**
+     * Get whether the update is skipped when the application definition has not changed.
+     *
+     * @return True if unchanged applications are not updated; False otherwise.
+     */
+    @Override
+    public boolean getSkipIfUnchanged() {
+        return skipIfUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setSkipIfUnchanged(final boolean skipIfUnchanged) {
+        this.skipIfUnchanged = skipIfUnchanged;
+    }
+
+    /**
+     * Used by jelly or stapler to determine checkbox state.
+     *
+     * @return True if Skip if Unchanged is enabled; False otherwise.
+     */
+    public boolean isSkipIfUnchanged() {
+        return getSkipIfUnchanged();
+    }
+
+    /**
+     * Get whether a newer build of the same job supersedes this build while its update is still pending.
+     *
+     * @return True if only the newest build deploys; False otherwise.
+     */
+    @Override
+    public boolean getCoalesce() {
+        return coalesce;
+    }
+
+    @DataBoundSetter
+    public void setCoalesce(final boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * Used by jelly or stapler to determine checkbox state.
+     *
+     * @return True if Coalesce is enabled; False otherwise.
+     */
+    public boolean isCoalesce() {
+        return getCoalesce();
+    }
+
+    /**
+     * Get whether Jenkins variables are expanded in all string values of the application definition file.
+     *
+     * @return True if variables are expanded in the whole definition; False otherwise.
+     */
+    @Override
+    public boolean getExpandDefinition() {
+        return expandDefinition;
+    }
+
+    @DataBoundSetter
+    public void setExpandDefinition(final boolean expandDefinition) {
+        this.expandDefinition = expandDefinition;
+    }
+
+    /**
+     * Used by jelly or stapler to determine checkbox state.
+     *
+     * @return True if Expand Definition is enabled; False otherwise.
+     */
+    public boolean isExpandDefinition() {
+        return getExpandDefinition();
+    }
+
+    /**
+     * Get whether the build waits for the Marathon deployment to finish.
+     *
+     * @return True if the build waits for the deployment; False otherwise.
+     */
+    public boolean getWaitForDeployment() {
+        return waitForDeployment;
+    }
+
+    /**
+     * Used by jelly or stapler to determine checkbox state.
+     *
+     * @return True if Wait for Deployment is enabled; False otherwise.
+     */
+    public boolean isWaitForDeployment() {
+        return getWaitForDeployment();
+    }
+
+    @DataBoundSetter
+    public void setWaitForDeployment(final boolean waitForDeployment) {
+        this.waitForDeployment = waitForDeployment;
+    }
+
+    /**
+     * Get the number of seconds to wait for the Marathon deployment to finish.
+     *
+     * @return timeout in seconds
+     */
+    public long getDeploymentTimeout() {
+        return deploymentTimeout > 0 ? deploymentTimeout : MarathonBuilderUtils.DEPLOYMENT_TIMEOUT;
+    }
+
+    @DataBoundSetter
+    public void setDeploymentTimeout(final long deploymentTimeout) {
+        this.deploymentTimeout = deploymentTimeout;
+    }
+
     public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
         public DescriptorImpl() {
             load();
@@ -3,18 +3,30 @@ package com.mesosphere.velocity.marathon;
 import com.mesosphere.velocity.marathon.fields.MarathonVars;
 import hudson.util.FormValidation;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 
+import com.mesosphere.velocity.marathon.exceptions.MarathonDeploymentException;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileMissingException;
 import com.mesosphere.velocity.marathon.fields.MarathonLabel;
+import com.mesosphere.velocity.marathon.fields.MarathonTarget;
 import com.mesosphere.velocity.marathon.fields.MarathonUri;
 import com.mesosphere.velocity.marathon.interfaces.AppConfig;
 import com.mesosphere.velocity.marathon.interfaces.MarathonBuilder;
+import com.mesosphere.velocity.marathon.util.AppLock;
+import com.mesosphere.velocity.marathon.util.FailurePolicy;
 import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import com.mesosphere.velocity.marathon.util.MarathonExecutor;
+import com.mesosphere.velocity.marathon.util.RetryPolicy;
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
@@ -26,7 +38,8 @@ import hudson.util.ListBoxModel;
 import mesosphere.marathon.client.MarathonException;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -34,25 +47,34 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 public class MarathonStep extends AbstractStepImpl implements AppConfig {
-    private final String              url;
-    private       List<MarathonUri>   uris;
-    private       List<MarathonLabel> labels;   // this does not work :(
-    private       List<MarathonVars>  env;
-    private       String              appid;
-    private       String              id;
-    private       String              docker;
-    private       String              containerType;
-    private       boolean             dockerForcePull;
-    private       String              filename;
-    private       String              credentialsId;
-    private       boolean             forceUpdate;
+    private final String               url;
+    private       List<MarathonUri>    uris;
+    private       List<MarathonLabel>  labels;   // this does not work :(
+    private       List<MarathonVars>   env;
+    private       String               appid;
+    private       String               id;
+    private       String               docker;
+    private       String               containerType;
+    private       boolean              dockerForcePull;
+    private       String               filename;
+    private       List<String>         filenames;
+    private       List<MarathonTarget> targets;
+    private       String               failurePolicy;
+    private       String               credentialsId;
+    private       boolean              forceUpdate;
+    private       boolean              waitForDeployment;
+    private       boolean              skipIfUnchanged;
+    private       boolean              coalesce;
+    private       boolean              expandDefinition;
+    private       long                 deploymentTimeout;
 
     @DataBoundConstructor
     public MarathonStep(final String url) {
-        this.url = MarathonBuilderUtils.rmSlashFromUrl(url);
+        this.url = url != null ? MarathonBuilderUtils.rmSlashFromUrl(url) : null;
         this.uris = new ArrayList<MarathonUri>(5);
         this.labels = new ArrayList<MarathonLabel>(5);
         this.env = new ArrayList<MarathonVars>(5);
+        this.deploymentTimeout = MarathonBuilderUtils.DEPLOYMENT_TIMEOUT;
     }
 
     @Override
@@ -79,6 +101,79 @@ public class MarathonStep extends AbstractStepImpl implements AppConfig {
         this.forceUpdate = forceUpdate;
     }
 
+    /**
+     * Get whether the update is skipped when the application definition has not changed.
+     *
+     * @return True if unchanged applications are not updated; False otherwise.
+     */
+    @Override
+    public boolean getSkipIfUnchanged() {
+        return skipIfUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setSkipIfUnchanged(final boolean skipIfUnchanged) {
+        this.skipIfUnchanged = skipIfUnchanged;
+    }
+
+    /**
+     * Get whether a newer build of the same job supersedes this build while its update is still pending.
+     *
+     * @return True if only the newest build deploys; False otherwise.
+     */
+    @Override
+    public boolean getCoalesce() {
+        return coalesce;
+    }
+
+    @DataBoundSetter
+    public void setCoalesce(final boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * Get whether Jenkins variables are expanded in all string values of the application definition file.
+     *
+     * @return True if variables are expanded in the whole definition; False otherwise.
+     */
+    @Override
+    public boolean getExpandDefinition() {
+        return expandDefinition;
+    }
+
+    @DataBoundSetter
+    public void setExpandDefinition(final boolean expandDefinition) {
+        this.expandDefinition = expandDefinition;
+    }
+
+    /**
+     * Get whether the step waits for the Marathon deployment to finish.
+     *
+     * @return True if the step waits for the deployment; False otherwise.
+     */
+    public boolean getWaitForDeployment() {
+        return waitForDeployment;
+    }
+
+    @DataBoundSetter
+    public void setWaitForDeployment(final boolean waitForDeployment) {
+        this.waitForDeployment = waitForDeployment;
+    }
+
+    /**
+     * Get the number of seconds to wait for the Marathon deployment to finish.
+     *
+     * @return timeout in seconds
+     */
+    public long getDeploymentTimeout() {
+        return deploymentTimeout > 0 ? deploymentTimeout : MarathonBuilderUtils.DEPLOYMENT_TIMEOUT;
+    }
+
+    @DataBoundSetter
+    public void setDeploymentTimeout(final long deploymentTimeout) {
+        this.deploymentTimeout = deploymentTimeout;
+    }
+
     public List<MarathonVars> getEnv() {
         final List<MarathonVars> marathonVarsList = new ArrayList<MarathonVars>(this.env.size());
         for (final MarathonVars envElem : this.env) {
@@ -184,6 +279,74 @@ public class MarathonStep extends AbstractStepImpl implements AppConfig {
             this.filename = filename;
     }
 
+    /**
+     * Get the application definition files that are deployed together as a single Marathon group.
+     *
+     * @return application definition files; null if a single application is deployed
+     */
+    public List<String> getFilenames() {
+        return filenames;
+    }
+
+    /**
+     * Set the application definition files that are deployed together as a single Marathon group. The "id"
+     * field is used as the group id.
+     *
+     * @param filenames application definition files
+     */
+    @DataBoundSetter
+    public void setFilenames(final List<String> filenames) {
+        this.filenames = filenames;
+    }
+
+    /**
+     * Get the additional Marathon instances to deploy to.
+     *
+     * @return Marathon instances and their credentials
+     */
+    public List<MarathonTarget> getTargets() {
+        return targets;
+    }
+
+    /**
+     * Set additional Marathon instances to deploy to. The application is rendered once and all instances,
+     * including the one given by "url" and "credentialsId", are updated concurrently.
+     *
+     * @param targets Marathon instances and their credentials
+     */
+    @DataBoundSetter
+    public void setTargets(final List<MarathonTarget> targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * Get how many Marathon instances have to be updated for the step to succeed: ALL, QUORUM or ANY.
+     *
+     * @return failure policy name; null for the default (ALL)
+     */
+    public String getFailurePolicy() {
+        return failurePolicy;
+    }
+
+    @DataBoundSetter
+    public void setFailurePolicy(final String failurePolicy) {
+        this.failurePolicy = failurePolicy;
+    }
+
+    /**
+     * Get every Marathon instance to deploy to when deploying to several instances.
+     *
+     * @return "url" and "credentialsId" followed by "targets"; empty if no additional targets are configured
+     */
+    List<MarathonTarget> getAllTargets() {
+        final List<MarathonTarget> allTargets = new ArrayList<>();
+        if (targets == null || targets.isEmpty()) return allTargets;
+
+        if (url != null && !url.trim().isEmpty()) allTargets.add(new MarathonTarget(url, credentialsId));
+        allTargets.addAll(targets);
+        return allTargets;
+    }
+
     /**
      * Get the application id for the "id" field.
      *
@@ -238,7 +401,11 @@ public class MarathonStep extends AbstractStepImpl implements AppConfig {
         }
     }
 
-    public static class MarathonStepExecution extends AbstractSynchronousStepExecution<Void> {
+    /**
+     * Runs the deployment on the {@link MarathonExecutor} and completes the step through its context, so that the
+     * CPS VM thread is not blocked while talking to Marathon.
+     */
+    public static class MarathonStepExecution extends AbstractStepExecutionImpl {
         private static final long serialVersionUID = 6213649171165833159L;
         /*
                  * Need the listener to append to console log.
@@ -254,29 +421,146 @@ public class MarathonStep extends AbstractStepImpl implements AppConfig {
         @Inject
         private transient MarathonStep step;
 
+        private transient volatile Future<?>       task;
+        private transient volatile MarathonBuilder builder;
+        /**
+         * Set by whichever completes the step first, the deployment or {@link #stop(Throwable)}.
+         */
+        private transient          AtomicBoolean   completed;
+
+        @Override
+        public boolean start() throws Exception {
+            final StepContext context = getContext();
+            completed = new AtomicBoolean();
+            task = MarathonExecutor.get().submit(() -> {
+                try {
+                    final Object result = deploy();
+                    if (completed.compareAndSet(false, true)) context.onSuccess(result);
+                } catch (Throwable t) {
+                    if (completed.compareAndSet(false, true)) context.onFailure(t);
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void stop(@Nonnull final Throwable cause) throws Exception {
+            final Future<?> current = task;
+            if (current != null) current.cancel(true);
+
+            final MarathonBuilder currentBuilder = builder;
+            if (currentBuilder != null) currentBuilder.abort();
+
+            if (completed == null || completed.compareAndSet(false, true)) getContext().onFailure(cause);
+        }
+
         @Override
-        protected Void run() throws Exception {
+        public void onResume() {
+            // the deployment ran on a thread that did not survive the restart
+            completed = new AtomicBoolean(true);
+            getContext().onFailure(new AbortException("[Marathon] Deployment was interrupted by a Jenkins restart."));
+        }
+
+        /**
+         * Deploy the application.
+         *
+         * @return results per Marathon instance when deploying to several instances; null otherwise
+         * @throws Exception when the deployment cannot be run
+         */
+        private Object deploy() throws Exception {
             if (step.getAppid() != null && !step.getAppid().equals("")) {
                 listener.getLogger().println("[Marathon] DEPRECATION WARNING: This configuration is using \"appid\" instead of \"id\". Please update this configuration.");
                 step.setId(step.getAppid());
             }
 
             try {
-                MarathonBuilder
+                builder = MarathonBuilder
                         .getBuilder(step)
                         .setEnvVars(envVars)
-                        .setWorkspace(ws)
-                        .read(step.filename)
-                        .build()
-                        .toFile()
-                        .update();
-            } catch (MarathonException | MarathonFileInvalidException | MarathonFileMissingException me) {
+                        .setWorkspace(ws);
+                if (step.filenames != null && !step.filenames.isEmpty()) {
+                    builder.readGroup(step.filenames).build().toFile();
+                } else {
+                    builder.render(step.filename, null);
+                }
+
+                final List<MarathonTarget> allTargets = step.getAllTargets();
+                if (!allTargets.isEmpty()) return deployToTargets(allTargets);
+
+                try (AppLock.Lease ignored = AppLock.acquire(builder, listener.getLogger())) {
+                    RetryPolicy.getDefault().update(builder, listener.getLogger());
+
+                    if (builder.getSupersededBy() > 0) {
+                        listener.getLogger().println("[Marathon] Superseded by #" + builder.getSupersededBy() + "; skipping update.");
+                    } else if (builder.isUnchanged()) {
+                        listener.getLogger().println("[Marathon] Application '" + builder.getApp().getId() + "' is unchanged; skipping update.");
+                    }
+
+                    if (step.getWaitForDeployment() && builder.getDeploymentId() != null) {
+                        listener.getLogger().println("[Marathon] Waiting for deployment '" + builder.getDeploymentId() + "' to finish.");
+                        builder.awaitDeployment(TimeUnit.SECONDS.toMillis(step.getDeploymentTimeout()));
+                        listener.getLogger().println("[Marathon] Deployment finished.");
+                    }
+                }
+            } catch (MarathonException | MarathonFileInvalidException | MarathonFileMissingException | MarathonDeploymentException me) {
                 final String errorMsg = String.format("[Marathon] %s", me.getMessage());
                 listener.error(errorMsg);
                 run.setResult(Result.FAILURE);
+            } finally {
+                builder = null;
             }
-
             return null;
         }
+
+        /**
+         * Update the rendered application on every target concurrently, and judge the outcome by the failure
+         * policy. Some failed targets within the policy mark the build as unstable.
+         *
+         * @param allTargets Marathon instances and their credentials
+         * @return results per Marathon URL
+         * @throws InterruptedException if interrupted while updating or waiting
+         */
+        private Map<String, Map<String, String>> deployToTargets(final List<MarathonTarget> allTargets) throws InterruptedException {
+            final FailurePolicy                              policy    = FailurePolicy.fromString(step.getFailurePolicy());
+            final LinkedHashMap<String, Map<String, String>> results   = new LinkedHashMap<>();
+            int                                              succeeded = 0;
+
+            for (final MarathonBuilder.TargetResult result : builder.updateTargets(allTargets, listener.getLogger())) {
+                final String          prefix        = "[Marathon] [" + result.getTarget().getUrl() + "] ";
+                final MarathonBuilder targetBuilder = result.getBuilder();
+                Exception             error         = result.getError();
+
+                if (error == null && step.getWaitForDeployment() && targetBuilder.getDeploymentId() != null) {
+                    listener.getLogger().println(prefix + "Waiting for deployment '" + targetBuilder.getDeploymentId() + "' to finish.");
+                    try {
+                        targetBuilder.awaitDeployment(TimeUnit.SECONDS.toMillis(step.getDeploymentTimeout()));
+                    } catch (MarathonDeploymentException e) {
+                        error = e;
+                    }
+                }
+
+                if (error == null) {
+                    final String message = targetBuilder.getSupersededBy() > 0 ? "superseded by #" + targetBuilder.getSupersededBy()
+                            : targetBuilder.isUnchanged() ? "unchanged" : null;
+                    succeeded++;
+                    listener.getLogger().println(prefix + (message != null ? "Application " + message + "; skipping update." : "Application updated."));
+                    results.put(result.getTarget().getUrl(), MarathonBuilderUtils.deploymentResult(Result.SUCCESS.toString(),
+                            targetBuilder.getDeploymentId(), message));
+                } else {
+                    listener.error(prefix + error.getMessage());
+                    results.put(result.getTarget().getUrl(), MarathonBuilderUtils.deploymentResult(Result.FAILURE.toString(),
+                            null, error.getMessage()));
+                }
+            }
+
+            if (!policy.isSatisfied(succeeded, allTargets.size())) {
+                listener.error("[Marathon] " + succeeded + " of " + allTargets.size() + " Marathon instances were updated; failure policy " + policy + " is not satisfied.");
+                run.setResult(Result.FAILURE);
+            } else if (succeeded < allTargets.size()) {
+                listener.getLogger().println("[Marathon] " + succeeded + " of " + allTargets.size() + " Marathon instances were updated.");
+                run.setResult(Result.UNSTABLE);
+            }
+            return results;
+        }
     }
 }
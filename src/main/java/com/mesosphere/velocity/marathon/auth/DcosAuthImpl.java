@@ -7,18 +7,23 @@ import com.auth0.jwt.internal.org.bouncycastle.jce.provider.BouncyCastleProvider
 import com.auth0.jwt.internal.org.bouncycastle.util.io.pem.PemReader;
 import com.cloudbees.plugins.credentials.Credentials;
 import com.mesosphere.velocity.marathon.exceptions.AuthenticationException;
+import com.mesosphere.velocity.marathon.util.CircuitBreaker;
+import com.mesosphere.velocity.marathon.util.HttpClientPool;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
 import hudson.util.Secret;
 import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 
 import java.io.IOException;
@@ -26,11 +31,14 @@ import java.io.StringReader;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
 import java.security.Security;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 public class DcosAuthImpl extends TokenAuthProvider {
@@ -70,35 +78,65 @@ public class DcosAuthImpl extends TokenAuthProvider {
         }
     }
 
-    private JWTSigner.Options options;
-    private ContentType       contentType;
-    private HttpClientBuilder client;
-    private HttpClientContext context;
-    private StringCredentials credentials;
+    /**
+     * Parsed service account material, keyed by credentials id.
+     */
+    private static final ConcurrentMap<String, ServiceAccount> SERVICE_ACCOUNTS = new ConcurrentHashMap<>();
+
+    private JWTSigner.Options   options;
+    private ContentType         contentType;
+    private CloseableHttpClient client;
+    private HttpClientContext   context;
+    private StringCredentials   credentials;
 
     public DcosAuthImpl(final StringCredentials credentials) {
         this(
                 credentials,
                 new JWTSigner.Options(),
                 ContentType.APPLICATION_JSON,
-                HttpClientBuilder.create(),
-                new HttpClientContext()
+                null,
+                null
         );
     }
 
+    /**
+     * @param credentials   service account credentials
+     * @param options       JWT signing options
+     * @param contentType   content type of the login request
+     * @param client        HTTP client; if null, the shared client for the login endpoint is used
+     * @param clientContext HTTP client context; if null, a new context is created for every login request
+     */
     DcosAuthImpl(final StringCredentials credentials,
                  final JWTSigner.Options options,
                  final ContentType contentType,
-                 final HttpClientBuilder clientBuilder,
+                 final CloseableHttpClient client,
                  final HttpClientContext clientContext) {
         this.options = options;
 
         this.contentType = contentType;
-        this.client = clientBuilder;
+        this.client = client;
         this.context = clientContext;
         this.credentials = credentials;
     }
 
+    /**
+     * Determine whether credentials hold a DC/OS service account, i.e. a JSON object with the user id,
+     * private key and login endpoint fields.
+     *
+     * @param credentials string credentials
+     * @return True if a token can be requested from DC/OS with these credentials; False otherwise.
+     */
+    static boolean isServiceAccount(final StringCredentials credentials) {
+        try {
+            final JSONObject json = JSONObject.fromObject(Secret.toString(credentials.getSecret()));
+            return json.has(DCOS_AUTH_USER_FIELD)
+                    && json.has(DCOS_AUTH_PRIVATEKEY_FIELD)
+                    && json.has(DCOS_AUTH_LOGINENDPOINT_FIELD);
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
     private String getTokenFromCookie(final HttpClientContext context) {
         final CookieStore  cookieStore = context.getCookieStore();
         final List<Cookie> cookies     = cookieStore.getCookies();
@@ -123,12 +161,37 @@ public class DcosAuthImpl extends TokenAuthProvider {
                 .setEntity(stringPayload)
                 .build();
 
-        try {
-            client.build().execute(request, context).close();
+        // fail fast while the login endpoint is known to be down
+        final CircuitBreaker breaker = CircuitBreaker.forUrl(payload.getLoginURL());
+        if (!breaker.tryAcquire()) {
+            final String errorMessage = breaker.getOpenMessage("DC/OS login endpoint");
+            LOGGER.warning(errorMessage);
+            throw new AuthenticationException(errorMessage);
+        }
+
+        final CloseableHttpClient client  = this.client != null ? this.client : HttpClientPool.getClient(payload.getLoginURL());
+        final HttpClientContext   context = this.context != null ? this.context : HttpClientPool.newContext();
+        // every permitted request records its outcome, or a half-open breaker would stay claimed
+        String failure = "login did not complete";
+        try (CloseableHttpResponse response = client.execute(request, context)) {
+            final int status = response.getStatusLine() != null ? response.getStatusLine().getStatusCode() : 0;
+            failure = status >= 500 ? "login returned " + status : null;
+            // release the connection back to the pool
+            EntityUtils.consume(response.getEntity());
         } catch (IOException e) {
+            failure = e.getMessage();
             final String errorMessage = "Failed to execute web request to login endpoint.\n" + e.getMessage();
             LOGGER.warning(errorMessage);
             throw new AuthenticationException(errorMessage);
+        } catch (RuntimeException e) {
+            failure = e.toString();
+            throw e;
+        } finally {
+            if (failure == null) {
+                breaker.onSuccess();
+            } else {
+                breaker.onFailure(failure);
+            }
         }
 
         return getTokenFromCookie(context);
@@ -148,8 +211,7 @@ public class DcosAuthImpl extends TokenAuthProvider {
                         LOGGER.warning(errorMessage);
                         throw new AuthenticationException(errorMessage);
                     }
-                    final StringCredentials updatedCredentials = newTokenCredentials(oldCredentials, token);
-                    return doTokenUpdate(oldCredentials.getId(), updatedCredentials);
+                    return storeToken(oldCredentials, token);
                 } catch (IOException e) {
                     LOGGER.warning(e.getMessage());
                     throw new AuthenticationException(e.getMessage());
@@ -164,12 +226,49 @@ public class DcosAuthImpl extends TokenAuthProvider {
 
     /**
      * Create a payload object for DC/OS. This contains the JSON payload for the web request and login endpoint (URL).
+     * The service account material is parsed once and cached; only the JWT is signed for every payload.
      *
      * @return DC/OS payload object
      * @throws AuthenticationException If error occurred during DC/OS authentication process
      */
     DcosLoginPayload createDcosLoginPayload() throws AuthenticationException {
-        final JSONObject jsonObject = constructJsonFromCredentials();
+        final ServiceAccount account = getServiceAccount();
+
+        this.options.setAlgorithm(account.algorithm);
+        this.options.setExpirySeconds(300); // 5 minutes expiration time
+        this.options.setIssuedAt(true);
+
+        final JWTSigner               signer = new JWTSigner(account.privateKey);
+        final HashMap<String, Object> claims = createClaims(account.uid);
+        final String                  jwt    = signer.sign(claims, this.options);
+        return DcosLoginPayload.create(account.loginEndpoint, account.uid, jwt);
+    }
+
+    /**
+     * Forget the parsed service account material for credentialsId.
+     *
+     * @param credentialsId the id of credentials
+     */
+    public static void invalidate(final String credentialsId) {
+        if (credentialsId != null) SERVICE_ACCOUNTS.remove(credentialsId);
+    }
+
+    /**
+     * Get the parsed service account material for the credentials. The cached entry is used as long as the
+     * fingerprint of the secret matches. When the secret changed (e.g. because a new token was stored within it)
+     * the JSON is parsed again, but the private key is only decoded again if the key itself changed.
+     *
+     * @return parsed service account
+     * @throws AuthenticationException If the service account JSON is invalid
+     */
+    private ServiceAccount getServiceAccount() throws AuthenticationException {
+        final String         secret        = Secret.toString(credentials.getSecret());
+        final String         fingerprint   = MarathonBuilderUtils.digest(secret);
+        final String         credentialsId = credentials.getId();
+        final ServiceAccount cached        = credentialsId == null ? null : SERVICE_ACCOUNTS.get(credentialsId);
+        if (cached != null && cached.fingerprint.equals(fingerprint)) return cached;
+
+        final JSONObject jsonObject = constructJsonFromCredentials(secret);
 
         try {
             final String uid           = jsonObject.getString(DCOS_AUTH_USER_FIELD);
@@ -181,17 +280,16 @@ public class DcosAuthImpl extends TokenAuthProvider {
                 throw new AuthenticationException("Unsupported algorithm '" + requestedAlg + "', this must be 'RS256'");
             }
 
-            final Algorithm algorithm = Algorithm.findByName(requestedAlg);
-
-            // try to set the algorithm to what was requested
-            this.options.setAlgorithm(algorithm);
-            this.options.setExpirySeconds(300); // 5 minutes expiration time
-            this.options.setIssuedAt(true);
+            final Algorithm  algorithm      = Algorithm.findByName(requestedAlg);
+            final String     key            = jsonObject.getString(DCOS_AUTH_PRIVATEKEY_FIELD);
+            final String     keyFingerprint = MarathonBuilderUtils.digest(key);
+            final PrivateKey privateKey     = cached != null && cached.keyFingerprint.equals(keyFingerprint)
+                    ? cached.privateKey
+                    : createPrivateKey(algorithm, key);
 
-            final JWTSigner               signer = createSigner(jsonObject.getString(DCOS_AUTH_PRIVATEKEY_FIELD));
-            final HashMap<String, Object> claims = createClaims(uid);
-            final String                  jwt    = signer.sign(claims, this.options);
-            return DcosLoginPayload.create(loginEndpoint, uid, jwt);
+            final ServiceAccount account = new ServiceAccount(fingerprint, keyFingerprint, uid, loginEndpoint, algorithm, privateKey);
+            if (credentialsId != null) SERVICE_ACCOUNTS.put(credentialsId, account);
+            return account;
         } catch (JWTAlgorithmException e) {
             final String errorMessage = "Algorithm error: " + e.getMessage();
             LOGGER.warning(errorMessage);
@@ -203,10 +301,9 @@ public class DcosAuthImpl extends TokenAuthProvider {
         }
     }
 
-    private JSONObject constructJsonFromCredentials() throws AuthenticationException {
-        final Secret secret = credentials.getSecret();
+    private JSONObject constructJsonFromCredentials(final String secret) throws AuthenticationException {
         try {
-            return JSONObject.fromObject(Secret.toString(secret));
+            return JSONObject.fromObject(secret);
         } catch (JSONException e) {
             // do not spit out the contents of the json...
             final String errorMessage = "Invalid JSON in credentials '" + credentials.getId() + "'";
@@ -228,21 +325,22 @@ public class DcosAuthImpl extends TokenAuthProvider {
     }
 
     /**
-     * Create a JWT signer that will sign claims with key.
+     * Decode the private key used to sign claims.
      *
-     * @param key String representation of a private key
-     * @return JWT signer
-     * @throws AuthenticationException If an error occurs creating the signer
+     * @param algorithm signing algorithm
+     * @param key       String representation of a private key
+     * @return private key
+     * @throws AuthenticationException If an error occurs decoding the key
      */
-    private JWTSigner createSigner(final String key) throws AuthenticationException {
-        switch (this.options.getAlgorithm()) {
+    private PrivateKey createPrivateKey(final Algorithm algorithm, final String key) throws AuthenticationException {
+        switch (algorithm) {
             case RS256:
                 final PemReader pemParser = new PemReader(new StringReader(key));
                 try {
                     final byte[]              content    = pemParser.readPemObject().getContent();
                     final PKCS8EncodedKeySpec keySpec    = new PKCS8EncodedKeySpec(content);
                     final KeyFactory          keyFactory = KeyFactory.getInstance("RSA", "BC");
-                    return new JWTSigner(keyFactory.generatePrivate(keySpec));
+                    return keyFactory.generatePrivate(keySpec);
                 } catch (IOException e) {
                     final String errorMessage = "Error encountered closing PEM reader:\n" + e.getMessage();
                     LOGGER.warning(errorMessage);
@@ -267,7 +365,33 @@ public class DcosAuthImpl extends TokenAuthProvider {
                     }
                 }
             default:
-                throw new AuthenticationException("Unsupported algorithm '" + this.options.getAlgorithm().getValue() + "', this must be 'RS256'");
+                throw new AuthenticationException("Unsupported algorithm '" + algorithm.getValue() + "', this must be 'RS256'");
+        }
+    }
+
+    /**
+     * Service account material parsed from credentials.
+     */
+    private static final class ServiceAccount {
+        private final String     fingerprint;
+        private final String     keyFingerprint;
+        private final String     uid;
+        private final String     loginEndpoint;
+        private final Algorithm  algorithm;
+        private final PrivateKey privateKey;
+
+        ServiceAccount(final String fingerprint,
+                       final String keyFingerprint,
+                       final String uid,
+                       final String loginEndpoint,
+                       final Algorithm algorithm,
+                       final PrivateKey privateKey) {
+            this.fingerprint = fingerprint;
+            this.keyFingerprint = keyFingerprint;
+            this.uid = uid;
+            this.loginEndpoint = loginEndpoint;
+            this.algorithm = algorithm;
+            this.privateKey = privateKey;
         }
     }
 }
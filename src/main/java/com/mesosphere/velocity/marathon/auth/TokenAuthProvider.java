@@ -1,21 +1,15 @@
 package com.mesosphere.velocity.marathon.auth;
 
 import com.cloudbees.plugins.credentials.Credentials;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.CredentialsStore;
-import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
-import com.cloudbees.plugins.credentials.domains.Domain;
 import com.mesosphere.velocity.marathon.exceptions.AuthenticationException;
-import hudson.ExtensionList;
+import com.mesosphere.velocity.marathon.util.CredentialsIndex;
 import hudson.util.Secret;
-import jenkins.model.Jenkins;
 import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -60,7 +54,7 @@ public abstract class TokenAuthProvider {
         } catch (JSONException jse) {
             json = new JSONObject();
         }
-        json.put("jenkins_token", token);
+        json.put(TokenCache.JENKINS_TOKEN_FIELD, token);
 
         return new StringCredentialsImpl(
                 tokenCredentials.getScope(),
@@ -69,44 +63,52 @@ public abstract class TokenAuthProvider {
                 Secret.fromString(json.toString()));
     }
 
+    /**
+     * Helper method to store a new token for tokenCredentials. The token is cached in memory, and written to the
+     * Jenkins Credential Store according to {@link TokenCache#PERSISTENCE}.
+     *
+     * @param tokenCredentials The current, existing credential the token belongs to.
+     * @param token            New token value for credential
+     * @return True if the token was stored; False otherwise.
+     * @throws IOException If problems reading or writing to Jenkins Credential Store
+     */
+    boolean storeToken(final StringCredentials tokenCredentials, final String token) throws IOException {
+        final String tokenId = tokenCredentials.getId();
+        TokenCache.put(tokenId, token,
+                TokenCache.getIdentity(tokenCredentials), TokenCache.getStoredToken(tokenCredentials));
+
+        switch (TokenCache.PERSISTENCE) {
+            case NEVER:
+                return true;
+            case LAZY:
+                TokenCache.scheduleWriteBack(tokenId, this);
+                return true;
+            default:
+                return doTokenUpdate(tokenId, newTokenCredentials(tokenCredentials, token));
+        }
+    }
+
     /**
      * Helper method to update tokenCredentials with contents of creds.
      * <p>
-     * This searches all domains for the id associated with tokenCredentials and updates the first credential it finds.
+     * This looks up the id associated with tokenCredentials in the system credentials store and updates that credential.
      *
      * @param tokenId Existing credentials that should be updated.
      * @param creds   New credentials
      * @throws IOException If problems reading or writing to Jenkins Credential Store
      */
     boolean doTokenUpdate(final String tokenId, final Credentials creds) throws IOException {
-        final SystemCredentialsProvider.ProviderImpl systemProvider = ExtensionList.lookup(CredentialsProvider.class)
-                .get(SystemCredentialsProvider.ProviderImpl.class);
-        if (systemProvider == null) return false;
-
-        final CredentialsStore credentialsStore = systemProvider.getStore(Jenkins.getInstance());
-        if (credentialsStore == null) return false;
-
-        /*
-            Walk through all domains and credentials for each domain to find a credential with the matching id.
-         */
-        for (final Domain d : credentialsStore.getDomains()) {
-            for (Credentials c : credentialsStore.getCredentials(d)) {
-                if (!(c instanceof StringCredentials)) continue;
-
-                final StringCredentials stringCredentials = (StringCredentials) c;
-                if (stringCredentials.getId().equals(tokenId)) {
-                    final boolean wasUpdated = credentialsStore.updateCredentials(d, c, creds);
-                    if (!wasUpdated) {
-                        LOGGER.warning("Updating Token credential failed during update call.");
-                    }
-                    return wasUpdated;
-                }
-            }
+        if (CredentialsIndex.get(tokenId, StringCredentials.class) == null) {
+            // if the credential was not found, then put a warning in the console log.
+            LOGGER.warning("Token credential was not found in the Credentials Store.");
+            return false;
         }
 
-        // if the credential was not found, then put a warning in the console log.
-        LOGGER.warning("Token credential was not found in the Credentials Store.");
-        return false;
+        final boolean wasUpdated = CredentialsIndex.updateSystemCredentials(tokenId, creds);
+        if (!wasUpdated) {
+            LOGGER.warning("Updating Token credential failed during update call.");
+        }
+        return wasUpdated;
     }
 
     public enum Providers {
@@ -0,0 +1,414 @@
+package com.mesosphere.velocity.marathon.auth;
+
+import com.mesosphere.velocity.marathon.exceptions.AuthenticationException;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import hudson.init.Terminator;
+import jenkins.util.Timer;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory cache of authentication tokens, keyed by credentials id.
+ * <p>
+ * DC/OS tokens are JWTs that carry an "exp" claim. The cache decodes that claim so that a token is refreshed
+ * before it expires, both synchronously when a build asks for a token that is about to expire and in the
+ * background for tokens that are in active use. Receiving a 401 from Marathon then becomes a rare fallback
+ * instead of the normal way a token gets refreshed.
+ * <p>
+ * Cached tokens are kept encrypted in memory and take precedence over the token stored within the credentials.
+ * {@link #PERSISTENCE} controls whether refreshed tokens are also written back to the credentials store, which
+ * rewrites the whole system credentials file: on every refresh, lazily, or not at all.
+ */
+public class TokenCache {
+    /**
+     * Field within JSON credentials that holds the token used to authenticate against Marathon.
+     */
+    public static final String JENKINS_TOKEN_FIELD = "jenkins_token";
+
+    /**
+     * Tokens are refreshed when they expire within this many milliseconds.
+     */
+    static final long REFRESH_MARGIN = Long.getLong(TokenCache.class.getName() + ".refreshMargin",
+            TimeUnit.MINUTES.toMillis(2));
+
+    /**
+     * Tokens that have not been used for this many milliseconds are not refreshed in the background.
+     */
+    static final long IDLE_TIMEOUT = Long.getLong(TokenCache.class.getName() + ".idleTimeout",
+            TimeUnit.MINUTES.toMillis(30));
+
+    /**
+     * How refreshed tokens are written back to the credentials store.
+     */
+    static final Persistence PERSISTENCE = Persistence.fromProperty(TokenCache.class.getName() + ".persistence");
+
+    /**
+     * With lazy persistence, refreshed tokens are written back to the credentials store after this many milliseconds.
+     */
+    static final long WRITE_BACK_DELAY = Long.getLong(TokenCache.class.getName() + ".writeBackDelay",
+            TimeUnit.MINUTES.toMillis(10));
+
+    private static final Logger                       LOGGER = Logger.getLogger(TokenCache.class.getName());
+    private static final ConcurrentMap<String, Entry> TOKENS = new ConcurrentHashMap<>();
+    /**
+     * Token refreshes that are currently in flight, keyed by credentials id.
+     */
+    private static final ConcurrentMap<String, CompletableFuture<String>> REFRESHES   = new ConcurrentHashMap<>();
+    /**
+     * Pending lazy write-backs, keyed by credentials id.
+     */
+    private static final ConcurrentMap<String, TokenAuthProvider>         WRITE_BACKS = new ConcurrentHashMap<>();
+
+    private TokenCache() {
+    }
+
+    /**
+     * Get a token for credentials that is not about to expire.
+     * <p>
+     * The cached token is used if it is still fresh. Otherwise the "jenkins_token" stored within the credentials
+     * is used if it is still fresh. If neither is, and the credentials hold a DC/OS service account, a new token
+     * is requested from DC/OS before the request to Marathon is made.
+     *
+     * @param credentialsId the id of credentials
+     * @param credentials   string credentials holding a token or a DC/OS service account
+     * @return token to use for the Authorization header; empty if there is none
+     * @throws AuthenticationException if refreshing the token failed
+     */
+    public static String getToken(final String credentialsId, final StringCredentials credentials) throws AuthenticationException {
+        final long   now          = System.currentTimeMillis();
+        final String secretDigest = MarathonBuilderUtils.digest(credentials.getSecret().getPlainText());
+
+        // the cached token is read first; the credentials only need to be parsed when they changed
+        final Entry cached = credentialsId == null ? null : TOKENS.get(credentialsId);
+        if (cached != null && secretDigest.equals(cached.secretDigest) && !cached.expiresBefore(now + REFRESH_MARGIN)) {
+            cached.lastUsed = now;
+            return cached.getToken();
+        }
+
+        final String storedToken = getStoredToken(credentials);
+        final String identity    = getIdentity(credentials);
+        if (cached != null && cached.identity.equals(identity) && !cached.expiresBefore(now + REFRESH_MARGIN)
+                && !isNewer(storedToken, cached)) {
+            cached.lastUsed = now;
+            cached.secretDigest = secretDigest;
+            return cached.getToken();
+        }
+
+        final long expiration = getExpiration(storedToken);
+        if (storedToken.isEmpty() || (expiration > 0 && expiration < now + REFRESH_MARGIN)) {
+            if (credentialsId != null && DcosAuthImpl.isServiceAccount(credentials)) {
+                LOGGER.fine("Token for '" + credentialsId + "' is missing or about to expire; refreshing.");
+                final String token = refresh(credentials, storedToken);
+                if (token != null) return token;
+            }
+            return storedToken;
+        }
+
+        if (credentialsId != null) put(credentialsId, storedToken, identity, null);
+        return storedToken;
+    }
+
+    /**
+     * Record a token for credentialsId. If the token carries an expiration, a background refresh is scheduled
+     * shortly before it expires.
+     *
+     * @param credentialsId the id of credentials
+     * @param token         the token
+     * @param identity      identity of the credentials the token belongs to, see {@link #getIdentity(StringCredentials)}
+     * @param replacedToken the token stored within the credentials that token replaces (may be null)
+     */
+    public static void put(final String credentialsId, final String token, final String identity, final String replacedToken) {
+        final Entry entry = new Entry(token, getExpiration(token), identity, replacedToken, System.currentTimeMillis());
+        TOKENS.put(credentialsId, entry);
+        scheduleRefresh(credentialsId, entry);
+    }
+
+    /**
+     * Forget the token cached for credentialsId.
+     *
+     * @param credentialsId the id of credentials
+     */
+    public static void invalidate(final String credentialsId) {
+        if (credentialsId != null) TOKENS.remove(credentialsId);
+    }
+
+    /**
+     * Write the token cached for credentialsId back to the credentials store after {@link #WRITE_BACK_DELAY}
+     * milliseconds. Tokens refreshed in the meantime are covered by the same write.
+     *
+     * @param credentialsId the id of credentials
+     * @param provider      provider used to update the credentials
+     */
+    static void scheduleWriteBack(final String credentialsId, final TokenAuthProvider provider) {
+        if (WRITE_BACKS.putIfAbsent(credentialsId, provider) != null) return;
+        Timer.get().schedule(() -> writeBack(credentialsId), WRITE_BACK_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write all pending tokens back to the credentials store.
+     */
+    @Terminator
+    public static void flush() {
+        for (final String credentialsId : WRITE_BACKS.keySet()) {
+            writeBack(credentialsId);
+        }
+    }
+
+    private static void writeBack(final String credentialsId) {
+        final TokenAuthProvider provider = WRITE_BACKS.remove(credentialsId);
+        final Entry             entry    = TOKENS.get(credentialsId);
+        if (provider == null || entry == null) return;
+
+        final StringCredentials credentials = MarathonBuilderUtils.getTokenCredentials(credentialsId);
+        if (credentials == null) return;
+        if (!entry.identity.equals(getIdentity(credentials))) {
+            LOGGER.fine("Credentials '" + credentialsId + "' changed; not writing back token.");
+            return;
+        }
+
+        final String token = entry.getToken();
+        if (token.equals(getStoredToken(credentials))) return;
+
+        try {
+            LOGGER.fine("Writing back token for '" + credentialsId + "'");
+            provider.doTokenUpdate(credentialsId, provider.newTokenCredentials(credentials, token));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write back token for '" + credentialsId + "'", e);
+        }
+    }
+
+    /**
+     * Get the "jenkins_token" stored within credentials. If the content of credentials is not JSON, the content
+     * itself is the token.
+     *
+     * @param credentials string credentials
+     * @return stored token; empty if there is none
+     */
+    static String getStoredToken(final StringCredentials credentials) {
+        final String secret = credentials.getSecret().getPlainText();
+        try {
+            final JSONObject json = JSONObject.fromObject(secret);
+            return json.has(JENKINS_TOKEN_FIELD) ? json.getString(JENKINS_TOKEN_FIELD) : "";
+        } catch (JSONException jse) {
+            return secret;
+        }
+    }
+
+    /**
+     * Get a digest that identifies the account behind credentials. For JSON credentials this covers every field
+     * except "jenkins_token", so that storing a refreshed token does not change the identity while editing the
+     * service account does.
+     *
+     * @param credentials string credentials
+     * @return identity digest
+     */
+    public static String getIdentity(final StringCredentials credentials) {
+        final String secret = credentials.getSecret().getPlainText();
+        try {
+            final JSONObject json = JSONObject.fromObject(secret);
+            json.remove(JENKINS_TOKEN_FIELD);
+            return MarathonBuilderUtils.digest(json.toString());
+        } catch (JSONException jse) {
+            return MarathonBuilderUtils.digest(secret);
+        }
+    }
+
+    /**
+     * Determine whether the token stored within the credentials should take precedence over the cached token,
+     * e.g. because somebody stored a new token by hand.
+     *
+     * @param storedToken token stored within the credentials
+     * @param cached      cached entry
+     * @return True if storedToken should be used instead of the cached token
+     */
+    private static boolean isNewer(final String storedToken, final Entry cached) {
+        if (storedToken.isEmpty() || storedToken.equals(cached.getToken())) return false;
+        if (cached.replaces(storedToken)) return false;
+
+        final long storedExpiration = getExpiration(storedToken);
+        if (storedExpiration < 0 || cached.expiration < 0) return true;
+        return storedExpiration > cached.expiration;
+    }
+
+    /**
+     * Decode the "exp" claim of a JWT.
+     *
+     * @param token a token
+     * @return expiration in milliseconds since the epoch; -1 if token is not a JWT or has no expiration
+     */
+    static long getExpiration(final String token) {
+        if (token == null) return -1;
+
+        final String[] parts = token.split("\\.");
+        if (parts.length != 3) return -1;
+
+        try {
+            final String     claims = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+            final JSONObject json   = JSONObject.fromObject(claims);
+            return json.has("exp") ? TimeUnit.SECONDS.toMillis(json.getLong("exp")) : -1;
+        } catch (IllegalArgumentException | JSONException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Request a new token for credentials from the token provider, replacing staleToken.
+     * <p>
+     * Refreshes are coalesced per credentials id: while a refresh is in flight, concurrent callers wait for its
+     * result instead of sending their own login request. A caller whose stale token was already replaced by an
+     * earlier refresh gets the new token right away.
+     *
+     * @param credentials service account credentials
+     * @param staleToken  the token that is being replaced (may be null)
+     * @return the new token, or null if it could not be stored
+     * @throws AuthenticationException if the token could not be retrieved
+     */
+    public static String refresh(final StringCredentials credentials, final String staleToken) throws AuthenticationException {
+        final String credentialsId = credentials.getId();
+
+        final Entry cached = TOKENS.get(credentialsId);
+        if (cached != null && !cached.getToken().equals(staleToken)
+                && !cached.expiresBefore(System.currentTimeMillis() + REFRESH_MARGIN)) {
+            LOGGER.fine("Token for '" + credentialsId + "' was already refreshed.");
+            return cached.getToken();
+        }
+
+        final CompletableFuture<String> refresh  = new CompletableFuture<>();
+        final CompletableFuture<String> inFlight = REFRESHES.putIfAbsent(credentialsId, refresh);
+        if (inFlight != null) {
+            LOGGER.fine("Waiting for in-flight token refresh of '" + credentialsId + "'");
+            return await(credentialsId, inFlight);
+        }
+
+        try {
+            final String token = doRefresh(credentials);
+            refresh.complete(token);
+            return token;
+        } catch (AuthenticationException | RuntimeException e) {
+            refresh.completeExceptionally(e);
+            throw e;
+        } finally {
+            REFRESHES.remove(credentialsId, refresh);
+        }
+    }
+
+    private static String await(final String credentialsId, final CompletableFuture<String> refresh) throws AuthenticationException {
+        try {
+            return refresh.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationException("Interrupted while waiting for token refresh of '" + credentialsId + "'");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AuthenticationException) throw (AuthenticationException) e.getCause();
+            throw new AuthenticationException(e.getCause().getMessage());
+        }
+    }
+
+    private static String doRefresh(final StringCredentials credentials) throws AuthenticationException {
+        final TokenAuthProvider provider = TokenAuthProvider.getTokenAuthProvider(TokenAuthProvider.Providers.DCOS, credentials);
+        if (provider == null) return null;
+
+        provider.updateTokenCredentials(credentials);
+        final Entry entry = TOKENS.get(credentials.getId());
+        return entry == null ? null : entry.getToken();
+    }
+
+    private static void scheduleRefresh(final String credentialsId, final Entry entry) {
+        if (entry.expiration <= 0) return;
+
+        final long delay = Math.max(0, entry.expiration - REFRESH_MARGIN - System.currentTimeMillis());
+        Timer.get().schedule(() -> {
+            // only refresh tokens that are still current and in use
+            if (TOKENS.get(credentialsId) != entry) return;
+            if (System.currentTimeMillis() - entry.lastUsed > IDLE_TIMEOUT) {
+                LOGGER.fine("Token for '" + credentialsId + "' is idle; not refreshing.");
+                return;
+            }
+
+            final StringCredentials credentials = MarathonBuilderUtils.getTokenCredentials(credentialsId);
+            if (credentials == null || !DcosAuthImpl.isServiceAccount(credentials)) return;
+
+            try {
+                LOGGER.fine("Refreshing token for '" + credentialsId + "' before it expires.");
+                refresh(credentials, entry.getToken());
+            } catch (AuthenticationException e) {
+                LOGGER.log(Level.WARNING, "Background token refresh failed for '" + credentialsId + "'", e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * How refreshed tokens are written back to the credentials store.
+     */
+    public enum Persistence {
+        /**
+         * Every refreshed token is written to the credentials store right away.
+         */
+        ALWAYS,
+        /**
+         * Refreshed tokens are written to the credentials store after {@link #WRITE_BACK_DELAY} milliseconds, and
+         * when Jenkins shuts down.
+         */
+        LAZY,
+        /**
+         * Refreshed tokens are only kept in memory.
+         */
+        NEVER;
+
+        static Persistence fromProperty(final String property) {
+            final String value = System.getProperty(property, ALWAYS.name());
+            try {
+                return valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                // LOGGER is not initialized yet
+                Logger.getLogger(TokenCache.class.getName())
+                        .warning("Unknown token persistence '" + value + "'; using " + ALWAYS.name());
+                return ALWAYS;
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final    byte[] sealedToken;
+        private final    long   expiration;
+        private final    String identity;
+        private final    String replacedDigest;
+        private volatile long   lastUsed;
+        /**
+         * Digest of the credentials secret this entry was last validated against.
+         */
+        private volatile String secretDigest;
+
+        Entry(final String token, final long expiration, final String identity, final String replacedToken, final long lastUsed) {
+            this.sealedToken = TokenCipher.seal(token);
+            this.expiration = expiration;
+            this.identity = identity;
+            this.replacedDigest = replacedToken == null ? null : MarathonBuilderUtils.digest(replacedToken);
+            this.lastUsed = lastUsed;
+        }
+
+        String getToken() {
+            return TokenCipher.open(sealedToken);
+        }
+
+        boolean replaces(final String token) {
+            return replacedDigest != null && replacedDigest.equals(MarathonBuilderUtils.digest(token));
+        }
+
+        boolean expiresBefore(final long time) {
+            return expiration > 0 && expiration < time;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.mesosphere.velocity.marathon.auth;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Encrypts tokens held in memory with AES-GCM. The key is generated randomly when the class is loaded and is never
+ * stored, so tokens only remain readable for the lifetime of the controller process.
+ */
+final class TokenCipher {
+    private static final String       TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int          IV_LENGTH      = 12;
+    private static final int          TAG_LENGTH     = 128;
+    private static final SecureRandom RANDOM         = new SecureRandom();
+    private static final SecretKey    KEY;
+
+    static {
+        try {
+            final KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128, RANDOM);
+            KEY = generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to create token encryption key", e);
+        }
+    }
+
+    private TokenCipher() {
+    }
+
+    /**
+     * Encrypt token.
+     *
+     * @param token plain token
+     * @return initialization vector followed by the cipher text
+     */
+    static byte[] seal(final String token) {
+        final byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+
+        try {
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, KEY, new GCMParameterSpec(TAG_LENGTH, iv));
+            final byte[] encrypted = cipher.doFinal(token.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.allocate(IV_LENGTH + encrypted.length).put(iv).put(encrypted).array();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to encrypt token", e);
+        }
+    }
+
+    /**
+     * Decrypt a token encrypted by {@link #seal(String)}.
+     *
+     * @param sealed initialization vector followed by the cipher text
+     * @return plain token
+     */
+    static String open(final byte[] sealed) {
+        try {
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, KEY, new GCMParameterSpec(TAG_LENGTH, sealed, 0, IV_LENGTH));
+            return new String(cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to decrypt token", e);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.mesosphere.velocity.marathon.exceptions;
+
+import mesosphere.marathon.client.MarathonException;
+
+/**
+ * Thrown instead of making a request to a Marathon endpoint whose circuit breaker is open. This is reported as
+ * 503 (Service Unavailable), but is never retried.
+ */
+public class CircuitOpenException extends MarathonException {
+    public CircuitOpenException(final String message) {
+        super(503, message);
+    }
+}
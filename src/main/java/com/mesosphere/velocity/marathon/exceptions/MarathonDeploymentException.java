@@ -0,0 +1,19 @@
+package com.mesosphere.velocity.marathon.exceptions;
+
+public class MarathonDeploymentException extends Exception {
+    private final String message;
+
+    public MarathonDeploymentException(final String message) {
+        this.message = message;
+    }
+
+    @Override
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return message;
+    }
+}
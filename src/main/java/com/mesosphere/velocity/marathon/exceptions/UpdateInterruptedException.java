@@ -0,0 +1,13 @@
+package com.mesosphere.velocity.marathon.exceptions;
+
+import mesosphere.marathon.client.MarathonException;
+
+/**
+ * Thrown when an update is interrupted before its request was sent, e.g. while waiting for an update slot. No
+ * response was received, so this is reported with status 0, and it is never retried.
+ */
+public class UpdateInterruptedException extends MarathonException {
+    public UpdateInterruptedException(final String message) {
+        super(0, message);
+    }
+}
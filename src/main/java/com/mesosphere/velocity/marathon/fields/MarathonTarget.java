@@ -0,0 +1,62 @@
+package com.mesosphere.velocity.marathon.fields;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.util.Objects;
+
+/**
+ * A Marathon instance to deploy to, together with the credentials used for it.
+ */
+public class MarathonTarget extends AbstractDescribableImpl<MarathonTarget> {
+    private final String url;
+    private       String credentialsId;
+
+    @DataBoundConstructor
+    public MarathonTarget(final String url) {
+        this.url = url;
+    }
+
+    public MarathonTarget(final String url, final String credentialsId) {
+        this.url = url;
+        this.credentialsId = credentialsId;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(final String credentialsId) {
+        this.credentialsId = credentialsId;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(url, credentialsId);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof MarathonTarget)) return false;
+
+        final MarathonTarget target = (MarathonTarget) obj;
+        return Objects.equals(target.getUrl(), this.getUrl()) &&
+                Objects.equals(target.getCredentialsId(), this.getCredentialsId());
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<MarathonTarget> {
+        public String getDisplayName() {
+            return "Marathon Target";
+        }
+    }
+}
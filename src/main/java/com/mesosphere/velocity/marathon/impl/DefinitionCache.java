@@ -0,0 +1,121 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of parsed definitions on the controller, keyed by the SHA-256 digest of the definition file.
+ * <p>
+ * Jobs and branches that deploy the same definition file share a single parsed tree. The cached trees are never
+ * handed out; callers get their own copy, which they may render in place.
+ * <p>
+ * The cache also remembers the digest last seen for each file, so that the node holding an unchanged file can be
+ * asked for its digest only.
+ */
+class DefinitionCache {
+    /**
+     * Maximum number of parsed definitions kept; 0 disables the cache.
+     */
+    static final int SIZE = Integer.getInteger(DefinitionCache.class.getName() + ".size", 256);
+
+    private static final Map<String, JsonObject> CACHE   = Collections.synchronizedMap(
+            new LinkedHashMap<String, JsonObject>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, JsonObject> eldest) {
+                    return size() > SIZE;
+                }
+            });
+    private static final Map<String, String>     DIGESTS = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                    return size() > SIZE;
+                }
+            });
+    private static final AtomicLong              HITS    = new AtomicLong();
+
+    private DefinitionCache() {
+    }
+
+    static boolean isEnabled() {
+        return SIZE > 0;
+    }
+
+    /**
+     * Get a copy of the definition with the given digest.
+     *
+     * @param digest hex encoded SHA-256 digest of the definition file
+     * @return copy of the definition; null if it is not cached
+     */
+    static JsonObject get(final String digest) {
+        final JsonObject definition = CACHE.get(digest);
+        if (definition == null) return null;
+
+        HITS.incrementAndGet();
+        return copy(definition).getAsJsonObject();
+    }
+
+    /**
+     * Cache a copy of definition, so that later changes to definition do not affect the cache.
+     *
+     * @param digest     hex encoded SHA-256 digest of the definition file
+     * @param definition parsed definition
+     */
+    static void put(final String digest, final JsonObject definition) {
+        if (isEnabled()) CACHE.put(digest, copy(definition).getAsJsonObject());
+    }
+
+    /**
+     * Get the digest last seen for file, as long as its definition is still cached.
+     *
+     * @param file key of the definition file (node and path)
+     * @return hex encoded SHA-256 digest; null if there is none
+     */
+    static String getDigest(final String file) {
+        final String digest = DIGESTS.get(file);
+        return digest != null && CACHE.containsKey(digest) ? digest : null;
+    }
+
+    /**
+     * Remember the digest last seen for file.
+     *
+     * @param file   key of the definition file (node and path)
+     * @param digest hex encoded SHA-256 digest of the definition file
+     */
+    static void putDigest(final String file, final String digest) {
+        if (isEnabled()) DIGESTS.put(file, digest);
+    }
+
+    static long getHits() {
+        return HITS.get();
+    }
+
+    /**
+     * Copy the objects and arrays of a tree. Primitives and nulls are immutable and shared.
+     *
+     * @param element tree to copy
+     * @return copy of element
+     */
+    private static JsonElement copy(final JsonElement element) {
+        if (element.isJsonObject()) {
+            final JsonObject object = new JsonObject();
+            for (final Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                object.add(entry.getKey(), copy(entry.getValue()));
+            }
+            return object;
+        } else if (element.isJsonArray()) {
+            final JsonArray array = new JsonArray();
+            for (final JsonElement item : element.getAsJsonArray()) {
+                array.add(copy(item));
+            }
+            return array;
+        }
+        return element;
+    }
+}
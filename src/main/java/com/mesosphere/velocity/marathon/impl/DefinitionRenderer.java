@@ -0,0 +1,347 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
+import com.mesosphere.velocity.marathon.fields.MarathonLabel;
+import com.mesosphere.velocity.marathon.fields.MarathonUri;
+import com.mesosphere.velocity.marathon.fields.MarathonVars;
+import com.mesosphere.velocity.marathon.interfaces.AppConfig;
+import com.mesosphere.velocity.marathon.util.MacroTemplate;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import hudson.EnvVars;
+import mesosphere.client.common.ModelUtils;
+import mesosphere.marathon.client.model.v2.App;
+import mesosphere.marathon.client.model.v2.Container;
+import mesosphere.marathon.client.model.v2.Docker;
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.collections.MapUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Applies the configuration to an application or group definition. Jenkins variables within the configuration are
+ * resolved when the renderer is created, so that it can be sent to an agent and render the definition next to the
+ * workspace.
+ */
+class DefinitionRenderer implements Serializable {
+    /**
+     * Group definition field holding applications.
+     */
+    static final String GROUP_APPS   = "apps";
+    /**
+     * Group definition field holding nested groups.
+     */
+    static final String GROUP_GROUPS = "groups";
+
+    private static final long serialVersionUID = 1L;
+
+    private final String              id;
+    private final String              docker;
+    private final String              containerType;
+    private final boolean             dockerForcePull;
+    private final List<String>        uris;
+    private final Map<String, String> labels;
+    private final Map<String, String> env;
+    private final boolean             skipIfUnchanged;
+    private final EnvVars             variables;
+
+    private DefinitionRenderer(final AppConfig config, final EnvVars envVars) {
+        this.id = StringUtils.isNotBlank(config.getAppId()) ? MacroTemplate.expand(config.getAppId(), envVars) : null;
+        this.docker = StringUtils.isNotBlank(config.getDocker()) ? MacroTemplate.expand(config.getDocker(), envVars) : null;
+        this.containerType = config.getContainerType();
+        this.dockerForcePull = config.getDockerForcePull();
+        this.skipIfUnchanged = config.getSkipIfUnchanged();
+        this.variables = config.getExpandDefinition() && envVars != null ? new EnvVars(envVars) : null;
+
+        this.uris = new ArrayList<>();
+        if (CollectionUtils.isNotEmpty(config.getUris())) {
+            for (final MarathonUri uri : config.getUris()) {
+                uris.add(MacroTemplate.expand(uri.getUri(), envVars));
+            }
+        }
+
+        this.labels = new LinkedHashMap<>();
+        if (CollectionUtils.isNotEmpty(config.getLabels())) {
+            for (final MarathonLabel label : config.getLabels()) {
+                labels.put(MacroTemplate.expand(label.getName(), envVars), MacroTemplate.expand(label.getValue(), envVars));
+            }
+        }
+
+        this.env = new LinkedHashMap<>();
+        if (CollectionUtils.isNotEmpty(config.getEnv())) {
+            for (final MarathonVars var : config.getEnv()) {
+                env.put(MacroTemplate.expand(var.getName(), envVars), MacroTemplate.expand(var.getValue(), envVars));
+            }
+        }
+    }
+
+    /**
+     * Create a renderer for config, resolving Jenkins variables with envVars.
+     *
+     * @param config  application configuration
+     * @param envVars Jenkins environment variables
+     * @return renderer
+     */
+    static DefinitionRenderer create(final AppConfig config, final EnvVars envVars) {
+        return new DefinitionRenderer(config, envVars);
+    }
+
+    /**
+     * Parse a definition with a single streaming pass, expanding Jenkins variables in its string values if the
+     * configuration asks for it.
+     *
+     * @param reader   definition content
+     * @param filename name of the definition file, for error messages
+     * @return the definition
+     * @throws MarathonFileInvalidException if the content is not a JSON object
+     * @throws IOException                  on IO issues
+     */
+    JsonObject read(final Reader reader, final String filename) throws MarathonFileInvalidException, IOException {
+        return parse(reader, filename, variables);
+    }
+
+    /**
+     * Parse a definition with a single streaming pass. With variables, Jenkins variables in string values are
+     * expanded as each value is read; keys are left alone.
+     *
+     * @param reader    definition content
+     * @param filename  name of the definition file, for error messages
+     * @param variables variables to expand; null to leave string values as they are
+     * @return the definition
+     * @throws MarathonFileInvalidException if the content is not a JSON object
+     * @throws IOException                  on IO issues
+     */
+    static JsonObject parse(final Reader reader, final String filename, final Map<String, String> variables)
+            throws MarathonFileInvalidException, IOException {
+        try (JsonReader jsonReader = new JsonReader(reader)) {
+            jsonReader.setLenient(true);
+            final JsonElement element = variables != null
+                    ? readExpanded(jsonReader, variables)
+                    : new JsonParser().parse(jsonReader);
+            if (!element.isJsonObject()) {
+                throw new MarathonFileInvalidException("File '" + filename + "' does not contain a JSON object.");
+            }
+            return element.getAsJsonObject();
+        } catch (JsonParseException | MalformedJsonException | EOFException e) {
+            throw new MarathonFileInvalidException("File '" + filename + "' is not valid JSON: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the next value from reader into a tree, expanding variables in string values.
+     *
+     * @param reader    JSON reader
+     * @param variables variables to expand
+     * @return the value
+     * @throws IOException on IO issues or malformed JSON
+     */
+    private static JsonElement readExpanded(final JsonReader reader, final Map<String, String> variables) throws IOException {
+        final JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                final JsonObject object = new JsonObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    object.add(reader.nextName(), readExpanded(reader, variables));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                final JsonArray array = new JsonArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.add(readExpanded(reader, variables));
+                }
+                reader.endArray();
+                return array;
+            case STRING:
+                final String value = reader.nextString();
+                // most values hold no references; keep those without compiling them
+                return new JsonPrimitive(value.indexOf('$') < 0 ? value : MacroTemplate.compile(value).expand(variables));
+            case NUMBER:
+                return new JsonPrimitive(new LazilyParsedNumber(reader.nextString()));
+            case BOOLEAN:
+                return new JsonPrimitive(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return JsonNull.INSTANCE;
+            default:
+                throw new JsonSyntaxException("Unexpected " + token + " at " + reader.getPath());
+        }
+    }
+
+    static boolean isGroup(final JsonObject definition) {
+        return definition != null && (definition.has(GROUP_APPS) || definition.has(GROUP_GROUPS));
+    }
+
+    static String getString(final JsonObject object, final String field) {
+        final JsonElement value = object.get(field);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+
+    /**
+     * Render an application definition.
+     *
+     * @param definition application definition
+     * @return the application that will be sent to Marathon
+     */
+    App renderApp(final JsonObject definition) {
+        final App app = ModelUtils.GSON.fromJson(definition, App.class);
+
+        if (StringUtils.isNotBlank(id)) app.setId(id);
+        setDockerImage(definition, app);
+        for (final String uri : uris) app.addUri(uri);
+        for (final Map.Entry<String, String> label : labels.entrySet()) app.addLabel(label.getKey(), label.getValue());
+        setEnv(app);
+        if (skipIfUnchanged) app.addLabel(MarathonBuilderUtils.CONTENT_HASH_LABEL, contentHash(app));
+
+        return app;
+    }
+
+    /**
+     * Render a group definition in place. The configured id becomes the group id; labels and environment variables
+     * are added to every application within the group. Docker image and URIs are specific to a single application
+     * and are not applied.
+     *
+     * @param definition group definition
+     */
+    void renderGroup(final JsonObject definition) {
+        if (StringUtils.isNotBlank(id)) definition.addProperty("id", id);
+        if (!labels.isEmpty() || !env.isEmpty()) applyToApps(definition);
+    }
+
+    /**
+     * Render a definition.
+     *
+     * @param definition application or group definition
+     * @return the JSON that will be sent to Marathon
+     */
+    JsonObject render(final JsonObject definition) {
+        if (isGroup(definition)) {
+            renderGroup(definition);
+            return definition;
+        }
+        return ModelUtils.GSON.toJsonTree(renderApp(definition)).getAsJsonObject();
+    }
+
+    private void setDockerImage(final JsonObject definition, final App app) {
+        if (StringUtils.isBlank(docker)) return;
+
+        if (app.getContainer() == null) {
+            app.setContainer(new Container());
+        }
+
+        if (app.getContainer().getDocker() == null) {
+            app.getContainer().setDocker(new Docker());
+        }
+        String type = "DOCKER"; // default
+        // if it's already present in the given json template, use the container
+        // type defined there
+        if (definition.has("container") && definition.get("container").isJsonObject()) {
+            final String templateType = getString(definition.getAsJsonObject("container"), "type");
+            if (templateType != null) {
+                type = templateType;
+            }
+        } else if (containerType != null) {
+            // if it's not, try to get one from configuration
+            type = containerType;
+        }
+        app.getContainer().setType(type);
+        app.getContainer().getDocker().setImage(docker);
+        app.getContainer().getDocker().setForcePullImage(dockerForcePull);
+    }
+
+    private void setEnv(final App app) {
+        if (env.isEmpty()) return;
+
+        final Map<String, Object> envsToAdd = new HashMap<>(env);
+        if (MapUtils.isEmpty(app.getEnv())) {
+            app.setEnv(envsToAdd);
+        } else {
+            app.getEnv().putAll(envsToAdd);
+        }
+    }
+
+    /**
+     * Compute a hash of the application definition. Object keys are sorted first, so that the same definition
+     * always has the same hash regardless of field or label order. The content hash label itself is excluded.
+     *
+     * @param app application
+     * @return hex encoded SHA-256 hash
+     */
+    private static String contentHash(final App app) {
+        final JsonObject definition = ModelUtils.GSON.toJsonTree(app).getAsJsonObject();
+        if (definition.has("labels") && definition.get("labels").isJsonObject()) {
+            definition.getAsJsonObject("labels").remove(MarathonBuilderUtils.CONTENT_HASH_LABEL);
+        }
+        return MarathonBuilderUtils.digest(canonicalize(definition).toString());
+    }
+
+    private static JsonElement canonicalize(final JsonElement element) {
+        if (element.isJsonObject()) {
+            final Map<String, JsonElement> sorted = new TreeMap<>();
+            for (final Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                sorted.put(entry.getKey(), entry.getValue());
+            }
+
+            final JsonObject canonical = new JsonObject();
+            for (final Map.Entry<String, JsonElement> entry : sorted.entrySet()) {
+                canonical.add(entry.getKey(), canonicalize(entry.getValue()));
+            }
+            return canonical;
+        } else if (element.isJsonArray()) {
+            final JsonArray canonical = new JsonArray();
+            for (final JsonElement item : element.getAsJsonArray()) canonical.add(canonicalize(item));
+            return canonical;
+        }
+        return element;
+    }
+
+    private void applyToApps(final JsonObject group) {
+        final JsonElement apps = group.get(GROUP_APPS);
+        if (apps != null && apps.isJsonArray()) {
+            for (final JsonElement app : apps.getAsJsonArray()) {
+                if (!app.isJsonObject()) continue;
+                merge(app.getAsJsonObject(), "labels", labels);
+                merge(app.getAsJsonObject(), "env", env);
+            }
+        }
+
+        final JsonElement groups = group.get(GROUP_GROUPS);
+        if (groups != null && groups.isJsonArray()) {
+            for (final JsonElement subgroup : groups.getAsJsonArray()) {
+                if (subgroup.isJsonObject()) applyToApps(subgroup.getAsJsonObject());
+            }
+        }
+    }
+
+    private static void merge(final JsonObject app, final String field, final Map<String, String> values) {
+        final JsonElement existing = app.get(field);
+        final JsonObject  merged   = existing != null && existing.isJsonObject() ? existing.getAsJsonObject() : new JsonObject();
+        for (final Map.Entry<String, String> value : values.entrySet()) {
+            merged.addProperty(value.getKey(), value.getValue());
+        }
+        app.add(field, merged);
+    }
+}
@@ -0,0 +1,277 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.mesosphere.velocity.marathon.exceptions.MarathonDeploymentException;
+import com.mesosphere.velocity.marathon.util.HttpClientPool;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import jenkins.util.Timer;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Waits for a Marathon deployment to finish by following the Marathon event stream (<code>/v2/events</code>).
+ * <p>
+ * The event stream is subscribed to before the list of running deployments is checked, so that a deployment that
+ * finishes in between is not missed. The stream is aborted when the timeout is reached; there is no polling.
+ */
+public class DeploymentWatcher {
+    /**
+     * Milliseconds to wait before reconnecting when the event stream was closed by Marathon.
+     */
+    static final long RECONNECT_DELAY = Long.getLong(DeploymentWatcher.class.getName() + ".reconnectDelay",
+            TimeUnit.SECONDS.toMillis(1));
+
+    static final         String DEPLOYMENT_SUCCESS = "deployment_success";
+    static final         String DEPLOYMENT_FAILED  = "deployment_failed";
+    private static final Logger LOGGER             = Logger.getLogger(DeploymentWatcher.class.getName());
+    private static final String EVENTS_PATH        = "/v2/events?event_type=" + DEPLOYMENT_SUCCESS + "&event_type=" + DEPLOYMENT_FAILED;
+    private static final String DEPLOYMENTS_PATH   = "/v2/deployments";
+
+    private final    String  url;
+    private final    String  authorization;
+    private volatile HttpGet stream;
+    private volatile boolean aborted;
+
+    /**
+     * @param url           Marathon URL
+     * @param authorization value of the Authorization header (may be null)
+     */
+    public DeploymentWatcher(final String url, final String authorization) {
+        this.url = MarathonBuilderUtils.rmSlashFromUrl(url);
+        this.authorization = authorization;
+    }
+
+    /**
+     * Block until the deployment identified by deploymentId succeeds. A deployment that is no longer running when
+     * the event stream has been subscribed to is considered finished.
+     *
+     * @param deploymentId Marathon deployment id
+     * @param timeout      maximum time to wait in milliseconds
+     * @throws MarathonDeploymentException if the deployment failed, or did not finish within timeout
+     * @throws InterruptedException        if the wait was aborted
+     */
+    public void await(final String deploymentId, final long timeout) throws MarathonDeploymentException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) throw timedOut(deploymentId, timeout);
+
+            final HttpGet request = newRequest(url + EVENTS_PATH);
+            request.setHeader(HttpHeaders.ACCEPT, "text/event-stream");
+
+            stream = request;
+            final ScheduledFuture<?> deadlineAbort = Timer.get().schedule(request::abort, remaining, TimeUnit.MILLISECONDS);
+            try (CloseableHttpResponse response = HttpClientPool.getStreamingClient(url).execute(request, HttpClientPool.newContext())) {
+                final int status = response.getStatusLine().getStatusCode();
+                if (status != HttpStatus.SC_OK) {
+                    throw new MarathonDeploymentException("Unable to follow Marathon events (http status: " + status + ")");
+                }
+
+                // the deployment may have finished before the subscription was in place
+                if (!isRunning(deploymentId)) {
+                    LOGGER.fine("Deployment '" + deploymentId + "' is no longer running.");
+                    return;
+                }
+
+                final String event = readEvents(response.getEntity().getContent(), deploymentId);
+                if (DEPLOYMENT_SUCCESS.equals(event)) return;
+                if (DEPLOYMENT_FAILED.equals(event)) {
+                    throw new MarathonDeploymentException("Deployment '" + deploymentId + "' failed.");
+                }
+            } catch (IOException e) {
+                if (aborted) throw new InterruptedException("Waiting for deployment '" + deploymentId + "' was aborted.");
+                if (request.isAborted()) throw timedOut(deploymentId, timeout);
+                LOGGER.fine("Marathon event stream was interrupted: " + e.getMessage());
+            } finally {
+                deadlineAbort.cancel(false);
+                stream = null;
+            }
+
+            if (aborted) throw new InterruptedException("Waiting for deployment '" + deploymentId + "' was aborted.");
+            Thread.sleep(Math.max(0, Math.min(RECONNECT_DELAY, deadline - System.currentTimeMillis())));
+        }
+    }
+
+    /**
+     * Stop waiting. A thread blocked in {@link #await(String, long)} receives an {@link InterruptedException}.
+     */
+    public void abort() {
+        aborted = true;
+        final HttpGet current = stream;
+        if (current != null) current.abort();
+    }
+
+    private HttpGet newRequest(final String requestUrl) {
+        final HttpGet request = new HttpGet(requestUrl);
+        if (authorization != null) request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        return request;
+    }
+
+    private static MarathonDeploymentException timedOut(final String deploymentId, final long timeout) {
+        return new MarathonDeploymentException("Deployment '" + deploymentId + "' did not finish within "
+                + TimeUnit.MILLISECONDS.toSeconds(timeout) + " seconds.");
+    }
+
+    /**
+     * Get the running deployments that affect the application or group id, i.e. the deployments that lock it.
+     *
+     * @param id Marathon application or group id
+     * @return ids of the running deployments affecting id
+     * @throws IOException on errors talking to Marathon, or if the deployments cannot be read
+     */
+    public List<String> getDeployments(final String id) throws IOException {
+        final String       appId       = id.startsWith("/") ? id : "/" + id;
+        final List<String> deployments = new ArrayList<>();
+        for (final JsonElement deployment : readDeployments()) {
+            final JsonObject  json     = deployment.getAsJsonObject();
+            final JsonElement affected = json.get("affectedApps");
+            if (affected == null || !affected.isJsonArray()) continue;
+
+            for (final JsonElement app : affected.getAsJsonArray()) {
+                final String affectedApp = app.isJsonPrimitive() ? app.getAsString() : "";
+                if (affectedApp.equals(appId) || affectedApp.startsWith(appId + "/")) {
+                    deployments.add(getString(json, "id"));
+                    break;
+                }
+            }
+        }
+        return deployments;
+    }
+
+    /**
+     * Cancel a deployment without rolling it back. The application stays in whatever state it reached, and the
+     * lock held by the deployment is released.
+     *
+     * @param deploymentId Marathon deployment id
+     * @throws IOException on errors talking to Marathon, or if Marathon did not cancel the deployment
+     */
+    public void cancel(final String deploymentId) throws IOException {
+        final HttpDelete request = new HttpDelete(url + DEPLOYMENTS_PATH + "/" + deploymentId + "?force=true");
+        if (authorization != null) request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        try (CloseableHttpResponse response = HttpClientPool.getClient(url).execute(request, HttpClientPool.newContext())) {
+            EntityUtils.consume(response.getEntity());
+            final int status = response.getStatusLine().getStatusCode();
+            if ((status < 200 || status >= 300) && status != HttpStatus.SC_NOT_FOUND) {
+                throw new IOException("Unable to cancel deployment '" + deploymentId + "' (http status: " + status + ")");
+            }
+        }
+    }
+
+    /**
+     * Determine whether deploymentId is within the list of running deployments.
+     *
+     * @param deploymentId Marathon deployment id
+     * @return True if the deployment is running or its state is unknown; False otherwise.
+     * @throws IOException on errors talking to Marathon
+     */
+    private boolean isRunning(final String deploymentId) throws IOException {
+        try {
+            for (final JsonElement deployment : readDeployments()) {
+                if (deploymentId.equals(getString(deployment.getAsJsonObject(), "id"))) return true;
+            }
+            return false;
+        } catch (IOException e) {
+            LOGGER.fine(e.getMessage());
+            return true;
+        }
+    }
+
+    private JsonArray readDeployments() throws IOException {
+        final HttpGet request = newRequest(url + DEPLOYMENTS_PATH);
+        try (CloseableHttpResponse response = HttpClientPool.getClient(url).execute(request, HttpClientPool.newContext())) {
+            final String body   = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            final int    status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK) {
+                throw new IOException("Unable to read Marathon deployments (http status: " + status + ")");
+            }
+            return new JsonParser().parse(body).getAsJsonArray();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Unable to read Marathon deployments: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read server-sent events from stream until an event finishes deploymentId.
+     *
+     * @param stream       event stream
+     * @param deploymentId Marathon deployment id
+     * @return {@link #DEPLOYMENT_SUCCESS} or {@link #DEPLOYMENT_FAILED}; null if the stream ended
+     * @throws IOException on errors reading the stream
+     */
+    static String readEvents(final InputStream stream, final String deploymentId) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        final StringBuilder  data   = new StringBuilder();
+        String               event  = null;
+        String               line;
+
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                final String finished = finishedBy(event, data.toString(), deploymentId);
+                if (finished != null) return finished;
+
+                event = null;
+                data.setLength(0);
+            } else if (line.startsWith("event:")) {
+                event = line.substring(6).trim();
+            } else if (line.startsWith("data:")) {
+                if (data.length() > 0) data.append('\n');
+                data.append(line.substring(5).trim());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Determine whether a single event finishes deploymentId.
+     *
+     * @param event        event name; may be null if the stream did not name the event
+     * @param data         event data
+     * @param deploymentId Marathon deployment id
+     * @return {@link #DEPLOYMENT_SUCCESS} or {@link #DEPLOYMENT_FAILED}; null for any other event
+     */
+    private static String finishedBy(final String event, final String data, final String deploymentId) {
+        // do not parse the data of the many events that are of no interest
+        if (data.isEmpty()) return null;
+        if (event != null && !DEPLOYMENT_SUCCESS.equals(event) && !DEPLOYMENT_FAILED.equals(event)) return null;
+
+        try {
+            final JsonObject json      = new JsonParser().parse(data).getAsJsonObject();
+            final String     eventType = event != null ? event : getString(json, "eventType");
+            if (!DEPLOYMENT_SUCCESS.equals(eventType) && !DEPLOYMENT_FAILED.equals(eventType)) return null;
+
+            final JsonObject plan = json.has("plan") && json.get("plan").isJsonObject() ? json.getAsJsonObject("plan") : null;
+            if (deploymentId.equals(getString(json, "id")) || (plan != null && deploymentId.equals(getString(plan, "id")))) {
+                return eventType;
+            }
+        } catch (JsonParseException | IllegalStateException e) {
+            LOGGER.fine("Ignoring unreadable Marathon event: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static String getString(final JsonObject json, final String field) {
+        final JsonElement element = json.get(field);
+        return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+    }
+}
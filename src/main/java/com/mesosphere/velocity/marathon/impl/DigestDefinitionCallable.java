@@ -0,0 +1,76 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileMissingException;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Checks a definition file and computes the SHA-256 digest of its bytes on the node that holds it, with a single
+ * round trip. If the digest is the one the controller expects, only the digest is sent back, so a definition that
+ * is already in the {@link DefinitionCache} is not transferred at all; otherwise the content is sent along.
+ * <p>
+ * Missing or invalid files are reported as an {@link IOException} caused by a {@link MarathonFileMissingException}
+ * or {@link MarathonFileInvalidException}.
+ */
+class DigestDefinitionCallable extends MasterToSlaveFileCallable<DigestDefinitionCallable.Result> {
+    private static final long serialVersionUID = 1L;
+
+    private final String filename;
+    private final String expectedDigest;
+
+    /**
+     * @param filename       name of the definition file, for error messages
+     * @param expectedDigest digest the controller has cached for this file (may be null)
+     */
+    DigestDefinitionCallable(final String filename, final String expectedDigest) {
+        this.filename = filename;
+        this.expectedDigest = expectedDigest;
+    }
+
+    @Override
+    public Result invoke(final File file, final VirtualChannel channel) throws IOException, InterruptedException {
+        try {
+            ReadDefinitionCallable.check(file, filename);
+        } catch (MarathonFileMissingException | MarathonFileInvalidException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final String digest  = MarathonBuilderUtils.digest(content);
+        return new Result(digest, digest.equals(expectedDigest) ? null : new String(content, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Digest of a definition file, and its content if the digest was not the expected one.
+     */
+    static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String digest;
+        private final String content;
+
+        Result(final String digest, final String content) {
+            this.digest = digest;
+            this.content = content;
+        }
+
+        String getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return content of the file; null if its digest was the expected one
+         */
+        String getContent() {
+            return content;
+        }
+    }
+}
@@ -2,43 +2,120 @@ package com.mesosphere.velocity.marathon.impl;
 
 import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
-import com.mesosphere.velocity.marathon.auth.TokenAuthProvider;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.mesosphere.velocity.marathon.auth.TokenCache;
 import com.mesosphere.velocity.marathon.exceptions.AuthenticationException;
+import com.mesosphere.velocity.marathon.exceptions.CircuitOpenException;
+import com.mesosphere.velocity.marathon.exceptions.MarathonDeploymentException;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileMissingException;
+import com.mesosphere.velocity.marathon.exceptions.UpdateInterruptedException;
 import com.mesosphere.velocity.marathon.fields.MarathonLabel;
+import com.mesosphere.velocity.marathon.fields.MarathonTarget;
 import com.mesosphere.velocity.marathon.fields.MarathonUri;
-import com.mesosphere.velocity.marathon.fields.MarathonVars;
 import com.mesosphere.velocity.marathon.interfaces.AppConfig;
 import com.mesosphere.velocity.marathon.interfaces.MarathonBuilder;
+import com.mesosphere.velocity.marathon.util.AppLock;
+import com.mesosphere.velocity.marathon.util.CircuitBreaker;
+import com.mesosphere.velocity.marathon.util.DeploymentCoalescer;
+import com.mesosphere.velocity.marathon.util.DeploymentLimiter;
+import com.mesosphere.velocity.marathon.util.HttpClientPool;
+import com.mesosphere.velocity.marathon.util.MacroTemplate;
 import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import com.mesosphere.velocity.marathon.util.MarathonClientRegistry;
+import com.mesosphere.velocity.marathon.util.MarathonExecutor;
+import com.mesosphere.velocity.marathon.util.RetryPolicy;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Util;
+import mesosphere.client.common.ModelUtils;
 import mesosphere.marathon.client.Marathon;
 import mesosphere.marathon.client.MarathonClient;
 import mesosphere.marathon.client.MarathonException;
-import mesosphere.marathon.client.model.v2.Container;
-import mesosphere.marathon.client.model.v2.Docker;
-import net.sf.json.JSONException;
+import mesosphere.marathon.client.model.v2.App;
+import mesosphere.marathon.client.model.v2.GetAppResponse;
+import mesosphere.marathon.client.model.v2.Result;
 import net.sf.json.JSONObject;
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class MarathonBuilderImpl extends MarathonBuilder {
+    /**
+     * Milliseconds to wait for the deployments that lock an application after a 409 (Conflict) response.
+     */
+    static final long    CONFLICT_TIMEOUT         = Long.getLong(MarathonBuilderImpl.class.getName() + ".conflictTimeout",
+            TimeUnit.MINUTES.toMillis(5));
+    /**
+     * Whether deployments that still lock an application after {@link #CONFLICT_TIMEOUT} are cancelled.
+     */
+    static final boolean CANCEL_STALE_DEPLOYMENTS = Boolean.getBoolean(MarathonBuilderImpl.class.getName() + ".cancelStaleDeployments");
+
     private static final Logger LOGGER = Logger.getLogger(MarathonBuilderImpl.class.getName());
     private AppConfig  config;
+    /**
+     * The application or group definition. This is parsed once from the file into a Gson tree, which the
+     * application is bound from without another round trip through text.
+     */
+    private JsonObject definition;
+    /**
+     * json-lib view of the definition; only created when a caller asks for {@link #getJson()}.
+     */
     private JSONObject json;
     private EnvVars    envVars;
     private FilePath   workspace;
+    /**
+     * The token used for the last request, if any.
+     */
+    private String     token;
+    /**
+     * The Authorization header used for the last request, if any.
+     */
+    private String     authorization;
+    /**
+     * The id of the deployment started by the last update, if any.
+     */
+    private String     deploymentId;
+    private boolean    unchanged;
+    /**
+     * The build that superseded the last update, if any.
+     */
+    private int        supersededBy;
+    /**
+     * The deployments named by the last 409 (Conflict) response, if any.
+     */
+    private List<String> blockingDeployments;
+    /**
+     * Watches the current deployment while {@link #awaitDeployment(long)} runs.
+     */
+    private volatile DeploymentWatcher watcher;
+    private volatile boolean           aborted;
+    /**
+     * Builders for the targets updated by the last {@link #updateTargets(List, PrintStream)}, if any.
+     */
+    private volatile List<MarathonBuilderImpl> targetBuilders;
 
     public MarathonBuilderImpl() {
         this(null);
@@ -72,8 +149,9 @@ public class MarathonBuilderImpl extends MarathonBuilder {
     }
 
     /**
-     * Perform the actual update call to Marathon. If a 401 (Unauthenticated) response is received,
-     * this will try to retrieve a new token from DC/OS using JWT credentials.
+     * Perform the actual update call to Marathon. Tokens are refreshed ahead of their expiration by the
+     * {@link TokenCache}; if a 401 (Unauthenticated) response is received regardless, this will try to
+     * retrieve a new token from DC/OS using JWT credentials.
      *
      * @return this Marathon builder
      * @throws MarathonException       If Marathon does not return a 20x OK response
@@ -81,58 +159,262 @@ public class MarathonBuilderImpl extends MarathonBuilder {
      */
     @Override
     public MarathonBuilder update() throws MarathonException, AuthenticationException {
-        if (getApp() != null) {
+        if (getApp() != null || isGroup()) {
             try {
-                doUpdate(config.getCredentialsId());
+                doAuthenticatedUpdate();
             } catch (MarathonException marathonException) {
-                LOGGER.warning("Marathon Exception: " + marathonException.getMessage());
-
-                // 401 results may be possible to resolve, others not so much
-                if (marathonException.getStatus() != 401) throw marathonException;
-                LOGGER.fine("Received 401 when updating Marathon application.");
-
-                final StringCredentials tokenCredentials = MarathonBuilderUtils.getTokenCredentials(config.getCredentialsId());
-                if (tokenCredentials == null) {
-                    LOGGER.warning("Unauthorized (401) and service account credentials are not filled in.");
+                // the application is locked by other deployments; wait for exactly those and retry right away
+                // (the token may have expired while waiting, so the retry is refreshed on a 401 as well)
+                if (marathonException.getStatus() != 409 || config.getForceUpdate() || aborted || !awaitBlockingDeployments()) {
                     throw marathonException;
                 }
+                doAuthenticatedUpdate();
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Perform the update call, refreshing the token and trying once more on a 401 (Unauthenticated) response.
+     *
+     * @throws MarathonException       If Marathon does not return a 20x OK response
+     * @throws AuthenticationException If an authentication provider was used and encountered a problem.
+     */
+    private void doAuthenticatedUpdate() throws MarathonException, AuthenticationException {
+        try {
+            doUpdate(config.getCredentialsId());
+        } catch (MarathonException marathonException) {
+            LOGGER.warning("Marathon Exception: " + marathonException.getMessage());
+
+            // 401 results may be possible to resolve, others not so much
+            if (marathonException.getStatus() != 401) throw marathonException;
+            LOGGER.fine("Received 401 when updating Marathon application.");
+
+            final StringCredentials tokenCredentials = MarathonBuilderUtils.getTokenCredentials(config.getCredentialsId());
+            if (tokenCredentials == null) {
+                LOGGER.warning("Unauthorized (401) and service account credentials are not filled in.");
+                throw marathonException;
+            }
+
+            // check if service account credentials were configured
+            // try to determine correct provider and update token
+            // (concurrent builds that were rejected with the same token share a single refresh)
+            final String updatedToken = TokenCache.refresh(tokenCredentials, this.token);
 
-                // check if service account credentials were configured
-                // try to determine correct provider and update token
-                // (there is only one provider thus far, so this is simple)
-                boolean                 updatedToken = false;
-                final TokenAuthProvider provider     = TokenAuthProvider.getTokenAuthProvider(TokenAuthProvider.Providers.DCOS, tokenCredentials);
-                if (provider != null) {
-                    updatedToken = provider.updateTokenCredentials(tokenCredentials);
+            // use the new token if it was updated
+            if (updatedToken != null) {
+                LOGGER.info("Token was successfully updated.");
+                doUpdate(config.getCredentialsId());
+            }
+        }
+    }
+
+    @Override
+    public boolean isUnchanged() {
+        return this.unchanged;
+    }
+
+    @Override
+    public int getSupersededBy() {
+        return this.supersededBy;
+    }
+
+    @Override
+    public String getDeploymentId() {
+        return this.deploymentId;
+    }
+
+    @Override
+    public MarathonBuilder awaitDeployment(final long timeout) throws MarathonDeploymentException, InterruptedException {
+        if (deploymentId != null) {
+            watcher = new DeploymentWatcher(getURL(), authorization);
+            try {
+                if (aborted) throw new InterruptedException("Waiting for deployment '" + deploymentId + "' was aborted.");
+                watcher.await(deploymentId, timeout);
+            } finally {
+                watcher = null;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void abort() {
+        aborted = true;
+        final DeploymentWatcher current = watcher;
+        if (current != null) current.abort();
+
+        final List<MarathonBuilderImpl> currentTargets = targetBuilders;
+        if (currentTargets != null) {
+            for (final MarathonBuilderImpl targetBuilder : currentTargets) targetBuilder.abort();
+        }
+    }
+
+    @Override
+    public List<TargetResult> updateTargets(final List<MarathonTarget> targets, final PrintStream logger) throws InterruptedException {
+        final List<MarathonBuilderImpl>  builders = new ArrayList<>(targets.size());
+        final List<Future<TargetResult>> updates  = new ArrayList<>(targets.size());
+        for (final MarathonTarget target : targets) {
+            final MarathonBuilderImpl targetBuilder = forTarget(target);
+            builders.add(targetBuilder);
+            updates.add(MarathonExecutor.getTargetExecutor().submit(() -> {
+                try {
+                    try (AppLock.Lease ignored = AppLock.acquire(targetBuilder, logger)) {
+                        RetryPolicy.getDefault().update(targetBuilder, logger);
+                    }
+                    return new TargetResult(target, targetBuilder, null);
+                } catch (MarathonException | AuthenticationException | RuntimeException e) {
+                    return new TargetResult(target, targetBuilder, e);
                 }
+            }));
+        }
+        this.targetBuilders = builders;
 
-                // use the new token if it was updated
-                if (updatedToken) {
-                    LOGGER.info("Token was successfully updated.");
-                    doUpdate(config.getCredentialsId());
+        final List<TargetResult> results = new ArrayList<>(targets.size());
+        try {
+            for (int i = 0; i < updates.size(); i++) {
+                try {
+                    results.add(updates.get(i).get());
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    results.add(new TargetResult(targets.get(i), builders.get(i),
+                            cause instanceof Exception ? (Exception) cause : e));
                 }
             }
+        } catch (InterruptedException e) {
+            for (final Future<TargetResult> update : updates) update.cancel(true);
+            throw e;
         }
+        return results;
+    }
 
-        return this;
+    /**
+     * Create a builder for a single target that shares the definition rendered by this builder. Only the URL
+     * and the credentials differ.
+     *
+     * @param target Marathon instance and credentials
+     * @return builder for target
+     */
+    private MarathonBuilderImpl forTarget(final MarathonTarget target) {
+        final MarathonBuilderImpl targetBuilder = new MarathonBuilderImpl(new TargetConfig(config, target));
+        targetBuilder.definition = definition;
+        targetBuilder.json = json;
+        targetBuilder.envVars = envVars;
+        targetBuilder.workspace = workspace;
+        targetBuilder.setApp(getApp());
+        targetBuilder.setURL(MacroTemplate.expand(target.getUrl(), envVars));
+        return targetBuilder;
     }
 
     @Override
     public MarathonBuilder read(final String filename) throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException {
-        final String   realFilename = filename != null ? filename : MarathonBuilderUtils.MARATHON_JSON;
-        final FilePath marathonFile = workspace.child(realFilename);
+        final String realFilename = filename != null ? filename : MarathonBuilderUtils.MARATHON_JSON;
+        this.definition = readJson(realFilename);
+        this.json = null;
+        return this;
+    }
+
+    @Override
+    public MarathonBuilder readGroup(final List<String> filenames) throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException {
+        if (StringUtils.isBlank(config.getAppId())) {
+            throw new MarathonFileInvalidException("A group id is required to deploy multiple application definitions.");
+        }
 
-        if (!marathonFile.exists()) {
-            throw new MarathonFileMissingException(realFilename);
-        } else if (marathonFile.isDirectory()) {
-            throw new MarathonFileInvalidException("File '" + realFilename + "' is a directory.");
+        final JsonArray apps = new JsonArray();
+        for (final String filename : filenames) {
+            apps.add(readJson(filename));
         }
 
-        final String content = marathonFile.readToString();
-        this.json = JSONObject.fromObject(content);
+        final JsonObject group = new JsonObject();
+        group.addProperty("id", config.getAppId());
+        group.add(DefinitionRenderer.GROUP_APPS, apps);
+        this.definition = group;
+        this.json = null;
         return this;
     }
 
+    @Override
+    public boolean isGroup() {
+        return DefinitionRenderer.isGroup(definition);
+    }
+
+    @Override
+    public String getId() {
+        if (isGroup()) return DefinitionRenderer.getString(definition, "id");
+        return getApp() != null ? getApp().getId() : null;
+    }
+
+    /**
+     * Read filename into a Gson tree with a single streaming parse. If the configuration asks for it, Jenkins
+     * variables in string values are expanded while parsing.
+     * <p>
+     * Otherwise the node that holds the workspace sends the digest of the file, and its content only if the digest
+     * is not the one last seen for this file. A definition that was parsed before is copied from the
+     * {@link DefinitionCache}; only new definitions are parsed.
+     *
+     * @param filename Path to the JSON file
+     * @return the definition
+     * @throws MarathonFileMissingException if filename does not exist
+     * @throws MarathonFileInvalidException if filename is a directory or not a JSON object
+     */
+    private JsonObject readJson(final String filename) throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException {
+        final FilePath file = workspace.child(filename);
+        if (isExpanded() || !DefinitionCache.isEnabled()) {
+            final String content = act(file, new ReadDefinitionCallable(filename));
+            return DefinitionRenderer.parse(new StringReader(content), filename, isExpanded() ? envVars : null);
+        }
+
+        final String                          key    = file.getChannel() + ":" + file.getRemote();
+        final DigestDefinitionCallable.Result result = act(file, new DigestDefinitionCallable(filename, DefinitionCache.getDigest(key)));
+        final JsonObject                      cached = DefinitionCache.get(result.getDigest());
+        if (cached != null) {
+            DefinitionCache.putDigest(key, result.getDigest());
+            return cached;
+        }
+
+        // the content is only missing if the definition was evicted after the digest was requested
+        final String content = result.getContent() != null ? result.getContent() : act(file, new ReadDefinitionCallable(filename));
+        final JsonObject definition = DefinitionRenderer.parse(new StringReader(content), filename, null);
+        // the file may have changed since its digest was taken; only cache what was actually parsed
+        if (result.getDigest().equals(MarathonBuilderUtils.digest(content))) {
+            DefinitionCache.put(result.getDigest(), definition);
+            DefinitionCache.putDigest(key, result.getDigest());
+        }
+        return definition;
+    }
+
+    /**
+     * Determine whether Jenkins variables are expanded while the definition is parsed.
+     *
+     * @return True if string values of the definition are expanded; False otherwise.
+     */
+    private boolean isExpanded() {
+        return config != null && config.getExpandDefinition() && envVars != null;
+    }
+
+    /**
+     * Run callable on path, rethrowing the {@link MarathonFileMissingException} or
+     * {@link MarathonFileInvalidException} that it reported through an {@link IOException}.
+     *
+     * @param path     file or directory to run callable on
+     * @param callable file callable
+     * @param <T>      result type
+     * @return result of callable
+     * @throws MarathonFileMissingException if callable found a file missing
+     * @throws MarathonFileInvalidException if callable found a file invalid
+     */
+    private static <T> T act(final FilePath path, final FilePath.FileCallable<T> callable)
+            throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException {
+        try {
+            return path.act(callable);
+        } catch (IOException e) {
+            if (e.getCause() instanceof MarathonFileMissingException) throw (MarathonFileMissingException) e.getCause();
+            if (e.getCause() instanceof MarathonFileInvalidException) throw (MarathonFileInvalidException) e.getCause();
+            throw e;
+        }
+    }
+
     @Override
     public MarathonBuilder read() throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException {
         return read(null);
@@ -140,12 +422,14 @@ public class MarathonBuilderImpl extends MarathonBuilder {
 
     @Override
     public JSONObject getJson() {
+        if (json == null && definition != null) json = JSONObject.fromObject(definition.toString());
         return this.json;
     }
 
     @Override
     public MarathonBuilder setJson(final JSONObject json) {
         this.json = json;
+        this.definition = json != null && !json.isNullObject() ? new JsonParser().parse(json.toString()).getAsJsonObject() : null;
         return this;
     }
 
@@ -170,25 +454,68 @@ public class MarathonBuilderImpl extends MarathonBuilder {
     @Override
     public MarathonBuilder build() {
         setURLFromConfig();
-        setAppFromJson(this.json);
+        final DefinitionRenderer renderer = DefinitionRenderer.create(config, envVars);
+        if (isGroup()) {
+            renderer.renderGroup(definition);
+            this.json = null;
+        } else {
+            setApp(renderer.renderApp(definition));
+        }
 
-        setId();
-        setDockerImage();
-        setUris();
-        setLabels();
-        setEnv();
+        registerBuild();
+        return this;
+    }
+
+    @Override
+    public MarathonBuilder render(final String filename, final String renderedFilename)
+            throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException {
+        final String realFilename     = filename != null ? filename : MarathonBuilderUtils.MARATHON_JSON;
+        final String realRenderedName = Util.replaceMacro(
+                renderedFilename != null ? renderedFilename : MarathonBuilderUtils.MARATHON_RENDERED_JSON, envVars);
+
+        setURLFromConfig();
+        final DefinitionRenderer renderer = DefinitionRenderer.create(config, envVars);
+        if (isExpanded() || !DefinitionCache.isEnabled()) {
+            final String rendered = act(workspace, new RenderDefinitionCallable(realFilename, realRenderedName, renderer));
+            this.definition = new JsonParser().parse(rendered).getAsJsonObject();
+        } else {
+            // the parsed definition comes from the cache; only the rendered definition is sent to the node
+            final JsonObject rendered = renderer.render(readJson(realFilename));
+            act(workspace.child(realRenderedName), new WriteRenderedCallable(realRenderedName, rendered.toString()));
+            this.definition = rendered;
+        }
+
+        // the rendered definition is bound once; the application needs no further rendering
+        this.json = null;
+        if (isGroup()) {
+            setApp(null);
+        } else {
+            setApp(ModelUtils.GSON.fromJson(definition, App.class));
+        }
 
+        registerBuild();
         return this;
     }
 
+    /**
+     * Register the build for coalescing as early as possible, so that older builds still queued for an update
+     * see this one.
+     */
+    private void registerBuild() {
+        final String coalesceKey = getCoalesceKey();
+        if (coalesceKey != null) DeploymentCoalescer.register(coalesceKey, getBuildNumber());
+    }
+
     @Override
     public MarathonBuilder toFile(final String filename) throws InterruptedException, IOException, MarathonFileInvalidException {
-        final String   realFilename     = filename != null ? filename : MarathonBuilderUtils.MARATHON_RENDERED_JSON;
-        final FilePath renderedFilepath = workspace.child(Util.replaceMacro(realFilename, envVars));
-        if (renderedFilepath.exists() && renderedFilepath.isDirectory())
-            throw new MarathonFileInvalidException("File '" + realFilename + "' is a directory; not overwriting.");
-
-        renderedFilepath.write(json.toString(), null);
+        final String realFilename = filename != null ? filename : MarathonBuilderUtils.MARATHON_RENDERED_JSON;
+        final String rendered     = isGroup() || getApp() == null ? definition.toString() : ModelUtils.GSON.toJson(getApp());
+        try {
+            workspace.child(Util.replaceMacro(realFilename, envVars)).act(new WriteRenderedCallable(realFilename, rendered));
+        } catch (IOException e) {
+            if (e.getCause() instanceof MarathonFileInvalidException) throw (MarathonFileInvalidException) e.getCause();
+            throw e;
+        }
         return this;
     }
 
@@ -202,160 +529,318 @@ public class MarathonBuilderImpl extends MarathonBuilder {
      * Marathon application.
      *
      * @param credentialsId A string ID for a credential within Jenkin's Credential store
-     * @throws MarathonException thrown if the Marathon service has an error
+     * @throws MarathonException       thrown if the Marathon service has an error, or a {@link CircuitOpenException}
+     *                                 if the circuit breaker for the Marathon instance is open
+     * @throws AuthenticationException thrown if a token could not be refreshed
      */
-    private void doUpdate(final String credentialsId) throws MarathonException {
+    private void doUpdate(final String credentialsId) throws MarathonException, AuthenticationException {
+        if (isSuperseded()) return;
+
         final Credentials credentials = MarathonBuilderUtils.getJenkinsCredentials(credentialsId, Credentials.class);
 
         Marathon client;
 
         if (credentials instanceof UsernamePasswordCredentials) {
-            client = getMarathonClient((UsernamePasswordCredentials) credentials);
+            client = getMarathonClient(credentialsId, (UsernamePasswordCredentials) credentials);
         } else if (credentials instanceof StringCredentials) {
-            client = getMarathonClient((StringCredentials) credentials);
+            client = getMarathonClient(credentialsId, (StringCredentials) credentials);
         } else {
             client = getMarathonClient();
         }
 
-        if (client != null) {
-            client.updateApp(getApp().getId(), getApp(), config.getForceUpdate());
+        // the update slot is held for this request only, not while waiting for blocking deployments or a token
+        try (DeploymentLimiter.Slot ignored = acquireSlot()) {
+            // newer builds may have registered while this one was queued for the slot
+            if (isSuperseded()) return;
+
+            // fail fast while the Marathon instance is known to be down; connection errors and 5xx responses count
+            // as failures, any other response shows that the instance is up
+            final CircuitBreaker breaker = CircuitBreaker.forUrl(getURL());
+            if (!breaker.tryAcquire()) throw new CircuitOpenException(breaker.getOpenMessage("Marathon endpoint"));
+
+            // every permitted request records its outcome, or a half-open breaker would stay claimed
+            String failure = "update did not complete";
+            try {
+                sendUpdate(client);
+                failure = null;
+            } catch (MarathonException e) {
+                failure = e.getStatus() >= 500 ? e.getStatus() + " " + e.getMessage() : null;
+                throw e;
+            } catch (RuntimeException e) {
+                failure = e.toString();
+                throw e;
+            } finally {
+                if (failure == null) {
+                    breaker.onSuccess();
+                } else {
+                    breaker.onFailure(failure);
+                }
+            }
         }
     }
 
     /**
-     * Get a Marathon client with basic auth using the username and password within the provided credentials.
+     * Determine whether a newer build of the same job registered for the application or group. A superseded
+     * update is skipped.
      *
-     * @param credentials Username and password credentials
-     * @return Marathon client with basic authentication filled in
+     * @return True if the update is superseded; False otherwise.
      */
-    private Marathon getMarathonClient(UsernamePasswordCredentials credentials) {
-        return MarathonClient
-                .getInstanceWithBasicAuth(getURL(), credentials.getUsername(), credentials.getPassword().getPlainText());
+    private boolean isSuperseded() {
+        final String coalesceKey = getCoalesceKey();
+        this.supersededBy = coalesceKey != null ? DeploymentCoalescer.getSupersedingBuild(coalesceKey, getBuildNumber()) : 0;
+        if (supersededBy == 0) return false;
+
+        LOGGER.fine("Update of '" + coalesceKey + "' by #" + getBuildNumber() + " is superseded by #" + supersededBy + ".");
+        this.unchanged = false;
+        this.deploymentId = null;
+        return true;
     }
 
     /**
-     * Get a Marathon client with Authorization headers using the token within provided credentials. If the content of
-     * credentials is JSON, this will use the "jenkins_token" field; if the content is just a string, that will be
-     * used as the token value.
+     * Wait for an update slot on the Marathon instance, reporting the time spent waiting to the build log.
      *
-     * @param credentials String credentials
-     * @return Marathon client with token in auth header
+     * @return slot to close once the request is done
+     * @throws UpdateInterruptedException if waiting was interrupted; the interrupt status of the thread is kept
      */
-    private Marathon getMarathonClient(StringCredentials credentials) {
-        String token;
-
+    private DeploymentLimiter.Slot acquireSlot() throws UpdateInterruptedException {
         try {
-            final JSONObject json = JSONObject.fromObject(credentials.getSecret().getPlainText());
-            if (json.has("jenkins_token")) {
-                token = json.getString("jenkins_token");
-            } else {
-                token = "";
-            }
-        } catch (JSONException jse) {
-            token = credentials.getSecret().getPlainText();
+            return DeploymentLimiter.forUrl(getURL()).acquire(getLogger());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UpdateInterruptedException("Interrupted while waiting for an update slot on '" + getURL() + "'");
         }
+    }
 
-        if (StringUtils.isNotEmpty(token)) {
-            return MarathonClient
-                    .getInstanceWithTokenAuth(getURL(), token);
-        }
+    /**
+     * Submit the group, or the application unless it is unchanged.
+     *
+     * @param client Marathon client
+     * @throws MarathonException if Marathon does not return a 20x OK response
+     */
+    private void sendUpdate(final Marathon client) throws MarathonException {
+        if (isGroup()) {
+            final Result result = updateGroup();
+            this.deploymentId = result != null ? result.getDeploymentId() : null;
+        } else if (client != null) {
+            this.unchanged = config.getSkipIfUnchanged() && isDeployed(client);
+            if (unchanged) {
+                LOGGER.fine("Application '" + getApp().getId() + "' is unchanged; not updating.");
+                this.deploymentId = null;
+                return;
+            }
 
-        return getMarathonClient();
+            final Result result = client.updateApp(getApp().getId(), getApp(), config.getForceUpdate());
+            this.deploymentId = result != null ? result.getDeploymentId() : null;
+        }
     }
 
     /**
-     * Get a default Marathon client. This does not include any authentication headers.
+     * Get the key deployments are coalesced by: the job and the application or group id.
      *
-     * @return Marathon client without authentication mechanisms
+     * @return key; null if coalescing is disabled or the build is unknown
      */
-    private Marathon getMarathonClient() {
-        return MarathonClient.getInstance(getURL());
+    private String getCoalesceKey() {
+        if (!config.getCoalesce() || envVars == null || getBuildNumber() <= 0) return null;
+
+        final String id  = getId();
+        final String job = envVars.get("JOB_NAME");
+        return id != null && job != null ? job + "|" + id : null;
     }
 
-    private void setId() {
-        if (config.getAppId() != null && config.getAppId().trim().length() > 0) {
-            final String appId = Util.replaceMacro(config.getAppId(), envVars);
-            if (appId != null && appId.trim().length() > 0) getApp().setId(appId);
+    private int getBuildNumber() {
+        try {
+            return envVars != null ? Integer.parseInt(envVars.get("BUILD_NUMBER", "0")) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 
-    private void setURLFromConfig() {
-        if (config.getUrl() != null) setURL(Util.replaceMacro(config.getUrl(), envVars));
-    }
+    /**
+     * Determine whether the running application was deployed from the same definition, by comparing the content
+     * hash label of the running application with the one stamped by {@link #build()}.
+     *
+     * @param client Marathon client
+     * @return True if the running application has the same content hash; False otherwise.
+     * @throws MarathonException if Marathon returns an error other than 404 (Not Found)
+     */
+    private boolean isDeployed(final Marathon client) throws MarathonException {
+        final String hash = getApp().getLabels() != null ? getApp().getLabels().get(MarathonBuilderUtils.CONTENT_HASH_LABEL) : null;
+        if (hash == null) return false;
 
-    private void setDockerImage() {
-        if (config.getDocker() != null && config.getDocker().trim().length() > 0) {
-            final String imageName = Util.replaceMacro(config.getDocker(), envVars);
+        try {
+            final GetAppResponse response = client.getApp(getApp().getId());
+            final App            running  = response != null ? response.getApp() : null;
+            return running != null && running.getLabels() != null
+                    && hash.equals(running.getLabels().get(MarathonBuilderUtils.CONTENT_HASH_LABEL));
+        } catch (MarathonException e) {
+            if (e.getStatus() == 404) return false;
+            throw e;
+        }
+    }
 
-            if (imageName == null || imageName.trim().length() == 0) {
-                return;
+    /**
+     * Submit the group definition with a single request to the Marathon groups API. Marathon computes one
+     * deployment for all applications within the group.
+     *
+     * @return Marathon result holding the deployment id
+     * @throws MarathonException if Marathon does not return a 20x OK response
+     */
+    private Result updateGroup() throws MarathonException {
+        final String  groupId = StringUtils.removeStart(StringUtils.defaultString(DefinitionRenderer.getString(definition, "id")), "/");
+        final HttpPut request = new HttpPut(MarathonBuilderUtils.rmSlashFromUrl(getURL())
+                + "/v2/groups/" + groupId + "?force=" + config.getForceUpdate());
+        if (authorization != null) request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        request.setEntity(new StringEntity(definition.toString(), ContentType.APPLICATION_JSON));
+
+        try (CloseableHttpResponse response = HttpClientPool.getClient(getURL()).execute(request, HttpClientPool.newContext())) {
+            final int    status = response.getStatusLine().getStatusCode();
+            final String body   = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null;
+            if (status == 409) this.blockingDeployments = readBlockingDeployments(body);
+            if (status < 200 || status >= 300) {
+                throw new MarathonException(status, response.getStatusLine().getReasonPhrase());
             }
+            return body != null ? ModelUtils.GSON.fromJson(body, Result.class) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to update Marathon group '" + groupId + "'", e);
+        }
+    }
 
-            if (getApp().getContainer() == null) {
-                getApp().setContainer(new Container());
-            }
+    /**
+     * Read the ids of the deployments that lock an application from the body of a 409 (Conflict) response.
+     *
+     * @param body response body
+     * @return deployment ids; null if the body does not name the deployments
+     */
+    private static List<String> readBlockingDeployments(final String body) {
+        try {
+            final JsonObject json = new JsonParser().parse(body).getAsJsonObject();
+            if (!json.has("deployments") || !json.get("deployments").isJsonArray()) return null;
 
-            if (getApp().getContainer().getDocker() == null) {
-                getApp().getContainer().setDocker(new Docker());
+            final List<String> deployments = new ArrayList<>();
+            for (final JsonElement deployment : json.getAsJsonArray("deployments")) {
+                final JsonElement id = deployment.isJsonObject() ? deployment.getAsJsonObject().get("id") : null;
+                if (id != null && id.isJsonPrimitive()) deployments.add(id.getAsString());
             }
-            String containerType = "DOCKER"; // default
-            // if it's already present in the given json template, use the container
-            // type defined there
-            if (json.containsKey("container")) {
-                JSONObject container = json.getJSONObject("container");
-                if (container.containsKey("type")) {
-                    containerType = container.getString("type");
-                }
-            } else if (config.getContainerType() != null) {
-                // if it's not, try to get one from configuration
-                containerType = config.getContainerType();
-            }
-            getApp().getContainer().setType(containerType);
-            getApp().getContainer().getDocker().setImage(imageName);
-            getApp().getContainer().getDocker().setForcePullImage(config.getDockerForcePull());
+            return deployments;
+        } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+            return null;
         }
     }
 
     /**
-     * Set the root "uris" JSON array with the URIs configured within
-     * the Jenkins UI. This handles transforming Environment Variables
-     * to their actual values.
+     * Wait for the deployments that lock the application or group after a 409 (Conflict) response. The blocking
+     * deployments are taken from the response when Marathon named them, and are otherwise looked up in the
+     * running deployments. Deployments still running after {@link #CONFLICT_TIMEOUT} are cancelled if
+     * {@link #CANCEL_STALE_DEPLOYMENTS} is set.
+     *
+     * @return True if the lock was released and the update can be retried immediately; False if no deployment
+     * locks it (the conflict is left to the retry policy) or the lock was not released.
      */
-    private void setUris() {
-        if (CollectionUtils.isNotEmpty(config.getUris())) {
-            for (MarathonUri uri : config.getUris()) {
-                final String replacedUri = Util.replaceMacro(uri.getUri(), envVars);
-                getApp().addUri(replacedUri);
+    private boolean awaitBlockingDeployments() {
+        final DeploymentWatcher conflictWatcher = new DeploymentWatcher(getURL(), authorization);
+        final String            id              = StringUtils.defaultString(getId());
+
+        try {
+            final List<String> blocking = blockingDeployments != null ? blockingDeployments : conflictWatcher.getDeployments(id);
+            blockingDeployments = null;
+            // nothing to wait for; an immediate retry would only add load, so leave it to the retry policy
+            if (blocking.isEmpty()) return false;
+
+            final long deadline = System.currentTimeMillis() + CONFLICT_TIMEOUT;
+            watcher = conflictWatcher;
+            for (final String blockingId : blocking) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+
+                LOGGER.info("'" + id + "' is locked by deployment '" + blockingId + "'; waiting for it to finish.");
+                try {
+                    conflictWatcher.await(blockingId, remaining);
+                } catch (MarathonDeploymentException e) {
+                    // a failed deployment releases the lock as well; timeouts are handled below
+                    LOGGER.fine(e.getMessage());
+                }
             }
-        }
-    }
 
-    private void setLabels() {
-        if (CollectionUtils.isNotEmpty(config.getLabels())) {
-            for (MarathonLabel label : config.getLabels()) {
-                final String labelName  = Util.replaceMacro(label.getName(), envVars);
-                final String labelValue = Util.replaceMacro(label.getValue(), envVars);
+            final List<String> stale = conflictWatcher.getDeployments(id);
+            stale.retainAll(blocking);
+            if (stale.isEmpty()) return true;
+            if (!CANCEL_STALE_DEPLOYMENTS) return false;
 
-                getApp().addLabel(labelName, labelValue);
+            for (final String staleId : stale) {
+                LOGGER.warning("Cancelling stale deployment '" + staleId + "' that locks '" + id + "'.");
+                conflictWatcher.cancel(staleId);
             }
+            return true;
+        } catch (IOException e) {
+            LOGGER.warning("Unable to determine the deployments locking '" + id + "': " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            watcher = null;
         }
     }
 
+    /**
+     * Get a Marathon client with basic auth using the username and password within the provided credentials.
+     * The client is resolved from the {@link MarathonClientRegistry} so that it is shared between deployments.
+     *
+     * @param credentialsId The id of credentials
+     * @param credentials   Username and password credentials
+     * @return Marathon client with basic authentication filled in
+     */
+    private Marathon getMarathonClient(final String credentialsId, final UsernamePasswordCredentials credentials) {
+        final String url      = getURL();
+        final String username = credentials.getUsername();
+        final String password = credentials.getPassword().getPlainText();
+        this.authorization = "Basic " + Base64.getEncoder()
+                .encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+
+        return MarathonClientRegistry.getClient(url, credentialsId, MarathonClientRegistry.AuthType.BASIC,
+                MarathonBuilderUtils.digest(username + ":" + password),
+                () -> MarathonClient.getInstanceWithBasicAuth(url, username, password));
+    }
 
-    private void setEnv() {
-        if (CollectionUtils.isNotEmpty(config.getEnv())) {
-            Map<String, Object> envsToAdd = new HashMap<>(config.getEnv().size());
-            for (MarathonVars var : config.getEnv()) {
-                envsToAdd.put(
-                        Util.replaceMacro(var.getName(), envVars),
-                        Util.replaceMacro(var.getValue(), envVars));
-            }
+    /**
+     * Get a Marathon client with Authorization headers using the token within provided credentials. If the content of
+     * credentials is JSON, this will use the "jenkins_token" field; if the content is just a string, that will be
+     * used as the token value. The client is resolved from the {@link MarathonClientRegistry} so that it is shared
+     * between deployments.
+     *
+     * @param credentialsId The id of credentials
+     * @param credentials   String credentials
+     * @return Marathon client with token in auth header
+     * @throws AuthenticationException If a DC/OS token needed to be refreshed and that failed
+     */
+    private Marathon getMarathonClient(final String credentialsId, final StringCredentials credentials) throws AuthenticationException {
+        final String token = TokenCache.getToken(credentialsId, credentials);
+        this.token = token;
 
-            if (MapUtils.isEmpty(getApp().getEnv())) {
-                getApp().setEnv(envsToAdd);
-            } else {
-                getApp().getEnv().putAll(envsToAdd);
-            }
+        if (StringUtils.isNotEmpty(token)) {
+            final String url = getURL();
+            this.authorization = "token=" + token;
+            return MarathonClientRegistry.getClient(url, credentialsId, MarathonClientRegistry.AuthType.TOKEN,
+                    MarathonBuilderUtils.digest(token),
+                    () -> MarathonClient.getInstanceWithTokenAuth(url, token));
         }
+
+        return getMarathonClient();
+    }
+
+    /**
+     * Get a default Marathon client. This does not include any authentication headers.
+     *
+     * @return Marathon client without authentication mechanisms
+     */
+    private Marathon getMarathonClient() {
+        final String url = getURL();
+        this.authorization = null;
+        return MarathonClientRegistry.getClient(url, null, MarathonClientRegistry.AuthType.NONE, null,
+                () -> MarathonClient.getInstance(url));
+    }
+
+    private void setURLFromConfig() {
+        if (config.getUrl() != null) setURL(MacroTemplate.expand(config.getUrl(), envVars));
     }
 }
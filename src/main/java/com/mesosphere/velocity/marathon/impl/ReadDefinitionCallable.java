@@ -0,0 +1,58 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileMissingException;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Checks and reads a definition file with a single round trip to the node that holds it, instead of separate calls
+ * for {@link hudson.FilePath#exists()}, {@link hudson.FilePath#isDirectory()} and
+ * {@link hudson.FilePath#readToString()}.
+ * <p>
+ * Missing or invalid files are reported as an {@link IOException} caused by a {@link MarathonFileMissingException}
+ * or {@link MarathonFileInvalidException}.
+ */
+class ReadDefinitionCallable extends MasterToSlaveFileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String filename;
+
+    /**
+     * @param filename name of the definition file, for error messages
+     */
+    ReadDefinitionCallable(final String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public String invoke(final File file, final VirtualChannel channel) throws IOException, InterruptedException {
+        try {
+            check(file, filename);
+        } catch (MarathonFileMissingException | MarathonFileInvalidException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check that file is an existing definition file.
+     *
+     * @param file     definition file
+     * @param filename name of the definition file, for error messages
+     * @throws MarathonFileMissingException if file does not exist
+     * @throws MarathonFileInvalidException if file is a directory
+     */
+    static void check(final File file, final String filename) throws MarathonFileMissingException, MarathonFileInvalidException {
+        if (!file.exists()) {
+            throw new MarathonFileMissingException(filename);
+        } else if (file.isDirectory()) {
+            throw new MarathonFileInvalidException("File '" + filename + "' is a directory.");
+        }
+    }
+}
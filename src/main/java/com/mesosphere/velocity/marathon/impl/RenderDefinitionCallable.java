@@ -0,0 +1,59 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import com.google.gson.JsonObject;
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileMissingException;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Reads, renders and writes a definition on the node that holds the workspace. Only the compact rendered JSON is
+ * sent back, instead of shipping the definition to the controller and the rendered file back to the node.
+ * <p>
+ * Missing or invalid definition files are reported as an {@link IOException} caused by a
+ * {@link MarathonFileMissingException} or {@link MarathonFileInvalidException}.
+ */
+class RenderDefinitionCallable extends MasterToSlaveFileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String             filename;
+    private final String             renderedFilename;
+    private final DefinitionRenderer renderer;
+
+    /**
+     * @param filename         definition file, relative to the workspace
+     * @param renderedFilename file to write the rendered definition to, relative to the workspace
+     * @param renderer         renderer holding the resolved configuration
+     */
+    RenderDefinitionCallable(final String filename, final String renderedFilename, final DefinitionRenderer renderer) {
+        this.filename = filename;
+        this.renderedFilename = renderedFilename;
+        this.renderer = renderer;
+    }
+
+    @Override
+    public String invoke(final File workspace, final VirtualChannel channel) throws IOException, InterruptedException {
+        final File file     = new File(workspace, filename);
+        final File rendered = new File(workspace, renderedFilename);
+        try {
+            ReadDefinitionCallable.check(file, filename);
+
+            final JsonObject definition;
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                definition = renderer.read(reader, filename);
+            }
+
+            final String json = renderer.render(definition).toString();
+            WriteRenderedCallable.write(rendered, renderedFilename, json);
+            return json;
+        } catch (MarathonFileMissingException | MarathonFileInvalidException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import com.mesosphere.velocity.marathon.fields.MarathonLabel;
+import com.mesosphere.velocity.marathon.fields.MarathonTarget;
+import com.mesosphere.velocity.marathon.fields.MarathonUri;
+import com.mesosphere.velocity.marathon.fields.MarathonVars;
+import com.mesosphere.velocity.marathon.interfaces.AppConfig;
+
+import java.util.List;
+
+/**
+ * Configuration for updating one of several Marathon instances. Everything but the URL and the credentials is
+ * taken from the original configuration.
+ */
+class TargetConfig implements AppConfig {
+    private final AppConfig      config;
+    private final MarathonTarget target;
+
+    TargetConfig(final AppConfig config, final MarathonTarget target) {
+        this.config = config;
+        this.target = target;
+    }
+
+    @Override
+    public String getAppId() {
+        return config.getAppId();
+    }
+
+    @Override
+    public String getUrl() {
+        return target.getUrl();
+    }
+
+    @Override
+    public boolean getForceUpdate() {
+        return config.getForceUpdate();
+    }
+
+    @Override
+    public String getContainerType() {
+        return config.getContainerType();
+    }
+
+    @Override
+    public String getDocker() {
+        return config.getDocker();
+    }
+
+    @Override
+    public boolean getDockerForcePull() {
+        return config.getDockerForcePull();
+    }
+
+    @Override
+    public String getCredentialsId() {
+        return target.getCredentialsId();
+    }
+
+    @Override
+    public List<MarathonUri> getUris() {
+        return config.getUris();
+    }
+
+    @Override
+    public List<MarathonLabel> getLabels() {
+        return config.getLabels();
+    }
+
+    @Override
+    public List<MarathonVars> getEnv() {
+        return config.getEnv();
+    }
+
+    @Override
+    public boolean getSkipIfUnchanged() {
+        return config.getSkipIfUnchanged();
+    }
+
+    @Override
+    public boolean getCoalesce() {
+        return config.getCoalesce();
+    }
+
+    @Override
+    public boolean getExpandDefinition() {
+        return config.getExpandDefinition();
+    }
+}
@@ -0,0 +1,65 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Checks and writes a rendered definition with a single round trip to the node that holds the workspace, instead
+ * of separate calls for {@link hudson.FilePath#exists()}, {@link hudson.FilePath#isDirectory()} and
+ * {@link hudson.FilePath#write(String, String)}.
+ * <p>
+ * A rendered file that is a directory is reported as an {@link IOException} caused by a
+ * {@link MarathonFileInvalidException}.
+ */
+class WriteRenderedCallable extends MasterToSlaveFileCallable<Void> {
+    private static final long serialVersionUID = 1L;
+
+    private final String filename;
+    private final String content;
+
+    /**
+     * @param filename name of the rendered file, for error messages
+     * @param content  rendered JSON
+     */
+    WriteRenderedCallable(final String filename, final String content) {
+        this.filename = filename;
+        this.content = content;
+    }
+
+    @Override
+    public Void invoke(final File file, final VirtualChannel channel) throws IOException, InterruptedException {
+        try {
+            write(file, filename, content);
+        } catch (MarathonFileInvalidException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Write content to file, creating parent directories as required.
+     *
+     * @param file     rendered file
+     * @param filename name of the rendered file, for error messages
+     * @param content  rendered JSON
+     * @throws MarathonFileInvalidException if file is a directory
+     * @throws IOException                  on IO issues
+     */
+    static void write(final File file, final String filename, final String content) throws MarathonFileInvalidException, IOException {
+        if (file.isDirectory()) {
+            throw new MarathonFileInvalidException("File '" + filename + "' is a directory; not overwriting.");
+        }
+
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory '" + parent + "'");
+        }
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
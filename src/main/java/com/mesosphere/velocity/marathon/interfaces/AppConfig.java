@@ -80,4 +80,29 @@ public interface AppConfig {
      * @return list of environment variables
      */
     List<MarathonVars> getEnv();
+
+    /**
+     * Get whether the update should be skipped when the application definition has not changed since it was
+     * last deployed. The plugin stamps a hash of the rendered definition onto the application as a label and
+     * compares it with the label of the running application.
+     *
+     * @return True if unchanged applications are not updated; False otherwise.
+     */
+    boolean getSkipIfUnchanged();
+
+    /**
+     * Get whether pending deployments of the same application by builds of the same job are coalesced. A build
+     * that has not sent its update yet is superseded by a newer build, and does not send its update at all.
+     *
+     * @return True if only the newest build deploys; False otherwise.
+     */
+    boolean getCoalesce();
+
+    /**
+     * Get whether Jenkins variables are expanded in all string values of the application definition file, not just
+     * in the configured fields. Keys are never expanded.
+     *
+     * @return True if variables are expanded in the whole definition; False otherwise.
+     */
+    boolean getExpandDefinition();
 }
@@ -2,8 +2,10 @@ package com.mesosphere.velocity.marathon.interfaces;
 
 import com.google.gson.JsonSyntaxException;
 import com.mesosphere.velocity.marathon.exceptions.AuthenticationException;
+import com.mesosphere.velocity.marathon.exceptions.MarathonDeploymentException;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileMissingException;
+import com.mesosphere.velocity.marathon.fields.MarathonTarget;
 import com.mesosphere.velocity.marathon.impl.MarathonBuilderImpl;
 import hudson.EnvVars;
 import hudson.FilePath;
@@ -13,6 +15,8 @@ import mesosphere.marathon.client.model.v2.App;
 import net.sf.json.JSONObject;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
 
 /**
  * This builds {@link mesosphere.marathon.client.MarathonClient Marathon Clients} from Jenkins, file system, and JSON pieces.
@@ -22,11 +26,15 @@ public abstract class MarathonBuilder {
     /**
      * Local URL value that may be different than what was passed through config.
      */
-    private String url;
+    private String      url;
     /**
      * Marathon application.
      */
-    private App    app;
+    private App         app;
+    /**
+     * Build log to report queueing for an update slot to.
+     */
+    private PrintStream logger;
 
     /**
      * Create a new builder instance from config.
@@ -48,6 +56,30 @@ public abstract class MarathonBuilder {
 
     public App getApp() { return this.app; }
 
+    public PrintStream getLogger() {
+        return this.logger;
+    }
+
+    /**
+     * Set the build log that waiting for an update slot on the Marathon instance is reported to.
+     *
+     * @param logger build log; null to report to the system log only
+     * @return This builder
+     */
+    public MarathonBuilder setLogger(final PrintStream logger) {
+        this.logger = logger;
+        return this;
+    }
+
+    /**
+     * Set the Marathon application, e.g. one that was already rendered by another builder.
+     *
+     * @param app Marathon application
+     */
+    protected void setApp(final App app) {
+        this.app = app;
+    }
+
     /**
      * Set Marathon application from JSON object.
      *
@@ -66,6 +98,59 @@ public abstract class MarathonBuilder {
      */
     public abstract MarathonBuilder update() throws MarathonException, AuthenticationException;
 
+    /**
+     * Determine whether the last {@link #update()} was skipped because the running application already matches
+     * the application definition.
+     *
+     * @return True if the application was unchanged and not updated; False otherwise.
+     */
+    public abstract boolean isUnchanged();
+
+    /**
+     * Get the build that superseded the last {@link #update()}. With coalescing enabled, an update is not sent
+     * when a newer build of the same job is deploying the same application.
+     *
+     * @return number of the superseding build; 0 if the update was not superseded
+     */
+    public abstract int getSupersededBy();
+
+    /**
+     * Get the id of the deployment started by the last {@link #update()}.
+     *
+     * @return deployment id; null if no deployment was started
+     */
+    public abstract String getDeploymentId();
+
+    /**
+     * Wait for the deployment started by the last {@link #update()} to finish. This follows the Marathon event
+     * stream and returns once the deployment succeeded.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return This builder
+     * @throws MarathonDeploymentException when the deployment failed or did not finish within timeout
+     * @throws InterruptedException when waiting was interrupted
+     */
+    public abstract MarathonBuilder awaitDeployment(final long timeout)
+            throws MarathonDeploymentException, InterruptedException;
+
+    /**
+     * Abort a wait started by {@link #awaitDeployment(long)} from another thread.
+     */
+    public abstract void abort();
+
+    /**
+     * Update the application or group rendered by {@link #build()} on several Marathon instances at once. Each
+     * target gets its own builder sharing the rendered definition, which is updated with the default
+     * {@link com.mesosphere.velocity.marathon.util.RetryPolicy}.
+     *
+     * @param targets Marathon instances and the credentials to use for them
+     * @param logger  build log to report retries to
+     * @return the result for each target, in the order of targets
+     * @throws InterruptedException if interrupted while waiting for the updates
+     */
+    public abstract List<TargetResult> updateTargets(final List<MarathonTarget> targets, final PrintStream logger)
+            throws InterruptedException;
+
     /**
      * Read in filename as JSON.
      *
@@ -79,6 +164,51 @@ public abstract class MarathonBuilder {
     public abstract MarathonBuilder read(final String filename)
             throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException;
 
+    /**
+     * Read filename, render it and write the rendered JSON to renderedFilename, all on the node that holds the
+     * workspace. Only the rendered definition is sent back, which replaces {@link #read(String)},
+     * {@link #build()} and {@link #toFile(String)}.
+     *
+     * @param filename         Path to the JSON file; null for the default file (marathon.json)
+     * @param renderedFilename File to write rendered JSON; null for the default file
+     * @return This builder
+     * @throws IOException on IO issues
+     * @throws InterruptedException on complications reading file
+     * @throws MarathonFileMissingException when the Marathon config file is missing
+     * @throws MarathonFileInvalidException when the Marathon config is not a file or not a JSON object
+     */
+    public abstract MarathonBuilder render(final String filename, final String renderedFilename)
+            throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException;
+
+    /**
+     * Read in several application definition files and combine them into a single group definition. The
+     * configured application id is used as the group id.
+     *
+     * @param filenames Paths to the JSON files
+     * @return This builder
+     * @throws IOException on IO issues
+     * @throws InterruptedException on complications reading file
+     * @throws MarathonFileMissingException when a Marathon config file is missing
+     * @throws MarathonFileInvalidException when a Marathon config is not a file, or no group id is configured
+     */
+    public abstract MarathonBuilder readGroup(final List<String> filenames)
+            throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException;
+
+    /**
+     * Determine whether the JSON for this builder is a group definition (it has "apps" or "groups") instead of
+     * a single application. Groups are submitted to the Marathon groups API with a single request.
+     *
+     * @return True if the JSON is a group definition; False otherwise.
+     */
+    public abstract boolean isGroup();
+
+    /**
+     * Get the id of the application or group definition.
+     *
+     * @return application or group id; null if there is none
+     */
+    public abstract String getId();
+
     /**
      * Read in default file (marathon.json) as JSON.
      *
@@ -92,6 +222,12 @@ public abstract class MarathonBuilder {
     public abstract MarathonBuilder read()
             throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException;
 
+    /**
+     * Get the JSON for this builder as a json-lib object. This is created on demand from the parsed definition;
+     * use {@link #setJson(JSONObject)} to change the definition.
+     *
+     * @return JSON definition
+     */
     public abstract JSONObject getJson();
 
     /**
@@ -160,4 +296,45 @@ public abstract class MarathonBuilder {
      */
     public abstract MarathonBuilder toFile()
             throws InterruptedException, IOException, MarathonFileInvalidException;
+
+    /**
+     * Result of updating a single Marathon instance through {@link #updateTargets(List, PrintStream)}.
+     */
+    public static class TargetResult {
+        private final MarathonTarget  target;
+        private final MarathonBuilder builder;
+        private final Exception       error;
+
+        public TargetResult(final MarathonTarget target, final MarathonBuilder builder, final Exception error) {
+            this.target = target;
+            this.builder = builder;
+            this.error = error;
+        }
+
+        public MarathonTarget getTarget() {
+            return target;
+        }
+
+        /**
+         * Get the builder that updated this target, e.g. to wait for its deployment.
+         *
+         * @return builder for this target
+         */
+        public MarathonBuilder getBuilder() {
+            return builder;
+        }
+
+        /**
+         * Get the error that failed the update.
+         *
+         * @return error; null if the update succeeded
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
 }
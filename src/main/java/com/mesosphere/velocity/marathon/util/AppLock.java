@@ -0,0 +1,117 @@
+package com.mesosphere.velocity.marathon.util;
+
+import com.mesosphere.velocity.marathon.interfaces.MarathonBuilder;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide lock per Marathon application (or group), so that concurrent builds deploying the same application
+ * take turns instead of racing each other into 409 (Conflict) responses and retries. Deployments of different
+ * applications, or of the same application on different Marathon instances, are not serialized.
+ * <p>
+ * Builds waiting for the lock queue fairly, in order of arrival, and the time spent waiting is reported to the
+ * build log. A lock is dropped once no build holds or waits for it. The lock is disabled unless {@link #ENABLED}
+ * is set.
+ */
+public class AppLock {
+    /**
+     * Whether deployments of the same application are serialized.
+     */
+    static final boolean ENABLED = Boolean.getBoolean(AppLock.class.getName() + ".enabled");
+
+    private static final Logger                        LOGGER = Logger.getLogger(AppLock.class.getName());
+    private static final ConcurrentMap<String, Entry> LOCKS  = new ConcurrentHashMap<>();
+    private static final Lease                         NONE   = () -> {
+    };
+
+    private AppLock() {
+    }
+
+    /**
+     * Acquire the lock for the application rendered by builder, waiting for other builds that hold it.
+     *
+     * @param builder built Marathon builder
+     * @param logger  build log to report the time spent waiting to
+     * @return lease to close once the deployment is done
+     * @throws InterruptedException if waiting for the lock was interrupted
+     */
+    public static Lease acquire(final MarathonBuilder builder, final PrintStream logger) throws InterruptedException {
+        if (!ENABLED) return NONE;
+
+        final String id = builder.getId();
+        if (id == null) return NONE;
+
+        return acquire(HttpClientPool.getEndpoint(builder.getURL()) + "|" + id, id, logger);
+    }
+
+    /**
+     * Acquire the lock for key.
+     *
+     * @param key    endpoint and application id
+     * @param id     application id, for the build log
+     * @param logger build log to report the time spent waiting to
+     * @return lease to close once the deployment is done
+     * @throws InterruptedException if waiting for the lock was interrupted
+     */
+    static Lease acquire(final String key, final String id, final PrintStream logger) throws InterruptedException {
+        final Entry entry = LOCKS.compute(key, (k, existing) -> {
+            final Entry e = existing != null ? existing : new Entry();
+            e.users++;
+            return e;
+        });
+
+        final ReentrantLock lock = entry.lock;
+        if (!lock.tryLock()) {
+            logger.println("[Marathon] Another build is deploying '" + id + "'; waiting in queue ("
+                    + lock.getQueueLength() + " waiting).");
+            final long start = System.currentTimeMillis();
+            try {
+                lock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                release(key);
+                throw e;
+            }
+            final long waited = System.currentTimeMillis() - start;
+            logger.println("[Marathon] Waited " + waited + " ms for the deployment lock on '" + id + "'.");
+            LOGGER.fine("Deployment of '" + key + "' waited " + waited + " ms for the lock.");
+        }
+        return () -> {
+            lock.unlock();
+            release(key);
+        };
+    }
+
+    /**
+     * Drop the lock for key once no build holds or waits for it.
+     *
+     * @param key endpoint and application id
+     */
+    private static void release(final String key) {
+        LOCKS.computeIfPresent(key, (k, e) -> --e.users == 0 ? null : e);
+    }
+
+    static int size() {
+        return LOCKS.size();
+    }
+
+    /**
+     * A lock together with the number of builds holding or waiting for it. The count is only changed within
+     * {@link ConcurrentMap#compute}, so that a lock is never dropped while another build is about to use it.
+     */
+    private static final class Entry {
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private       int           users;
+    }
+
+    /**
+     * A held lock. Must be closed by the thread that acquired it.
+     */
+    public interface Lease extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,176 @@
+package com.mesosphere.velocity.marathon.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Per-endpoint circuit breaker for Marathon and DC/OS login requests.
+ * <p>
+ * After {@link #FAILURE_THRESHOLD} consecutive failures (connection errors or 5xx responses) the breaker opens and
+ * requests to the endpoint fail fast instead of running the full request and retry cycle against an instance that is
+ * down. After {@link #OPEN_TIMEOUT} a single probe request is let through (half-open); its outcome closes the breaker
+ * again or keeps it open for another period.
+ * <p>
+ * Breakers are keyed by endpoint (scheme, host and port), like the {@link HttpClientPool}.
+ */
+public class CircuitBreaker {
+    /**
+     * Number of consecutive failures that open the breaker.
+     */
+    static final int  FAILURE_THRESHOLD = Integer.getInteger(CircuitBreaker.class.getName() + ".failureThreshold", 5);
+    /**
+     * Milliseconds the breaker stays open before a probe request is let through.
+     */
+    static final long OPEN_TIMEOUT      = Long.getLong(CircuitBreaker.class.getName() + ".openTimeout",
+            TimeUnit.SECONDS.toMillis(30));
+
+    private static final Logger                                 LOGGER   = Logger.getLogger(CircuitBreaker.class.getName());
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String  endpoint;
+    private final int     failureThreshold;
+    private final long    openTimeout;
+    private       State   state = State.CLOSED;
+    private       int     consecutiveFailures;
+    private       long    openedAt;
+    private       String  lastFailure;
+    private       boolean probing;
+
+    CircuitBreaker(final String endpoint, final int failureThreshold, final long openTimeout) {
+        this.endpoint = endpoint;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openTimeout = openTimeout;
+    }
+
+    /**
+     * Get the breaker for the endpoint of url, creating it if required.
+     *
+     * @param url Marathon or DC/OS URL
+     * @return circuit breaker
+     */
+    public static CircuitBreaker forUrl(final String url) {
+        return BREAKERS.computeIfAbsent(HttpClientPool.getEndpoint(url),
+                endpoint -> new CircuitBreaker(endpoint, FAILURE_THRESHOLD, OPEN_TIMEOUT));
+    }
+
+    /**
+     * Get all breakers, ordered by endpoint.
+     *
+     * @return circuit breakers
+     */
+    public static List<CircuitBreaker> getAll() {
+        final List<CircuitBreaker> breakers = new ArrayList<>(BREAKERS.values());
+        Collections.sort(breakers, Comparator.comparing(CircuitBreaker::getEndpoint));
+        return breakers;
+    }
+
+    /**
+     * Determine whether a request to the endpoint may be made. Every permitted request must be followed by
+     * {@link #onSuccess()} or {@link #onFailure(String)}.
+     *
+     * @return True if the request may be made; False if it should fail fast.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openTimeout) return false;
+                LOGGER.info("Circuit breaker for '" + endpoint + "' is half-open; probing.");
+                state = State.HALF_OPEN;
+                probing = true;
+                return true;
+            case HALF_OPEN:
+                // only a single probe at a time
+                if (probing) return false;
+                probing = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Record a request that reached the endpoint. This closes the breaker.
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) LOGGER.info("Circuit breaker for '" + endpoint + "' is closed again.");
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probing = false;
+    }
+
+    /**
+     * Record a request that failed because the endpoint was unavailable.
+     *
+     * @param reason description of the failure
+     */
+    public synchronized void onFailure(final String reason) {
+        consecutiveFailures++;
+        lastFailure = reason;
+        probing = false;
+
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) {
+                LOGGER.warning("Circuit breaker for '" + endpoint + "' is open after " + consecutiveFailures
+                        + " consecutive failures: " + reason);
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Close the breaker, e.g. after the endpoint was fixed.
+     */
+    public synchronized void reset() {
+        onSuccess();
+        lastFailure = null;
+    }
+
+    /**
+     * Describe why requests fail fast, for build logs and error messages.
+     *
+     * @param label what the endpoint is, e.g. "Marathon endpoint" or "DC/OS login endpoint"
+     * @return message
+     */
+    public synchronized String getOpenMessage(final String label) {
+        return label + " '" + endpoint + "' is unavailable (" + consecutiveFailures
+                + " consecutive failures, last: " + lastFailure + "); failing fast for "
+                + TimeUnit.MILLISECONDS.toSeconds(getRetryIn()) + " more seconds.";
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized String getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Get the milliseconds until the next probe is let through.
+     *
+     * @return milliseconds; 0 if the breaker is not open
+     */
+    public synchronized long getRetryIn() {
+        if (state != State.OPEN) return 0;
+        return Math.max(0, openedAt + openTimeout - System.currentTimeMillis());
+    }
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+}
@@ -0,0 +1,283 @@
+package com.mesosphere.velocity.marathon.util;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.IdCredentials;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.mesosphere.velocity.marathon.auth.DcosAuthImpl;
+import com.mesosphere.velocity.marathon.auth.TokenCache;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Index of the credentials visible to Jenkins, keyed by credentials id.
+ * <p>
+ * Looking up credentials by id through {@link CredentialsProvider#lookupCredentials} scans every credential, and a
+ * deployment does so several times. The index is built with a single scan and is invalidated whenever the system
+ * credentials are saved. As not every credentials provider reports changes, the index is also rebuilt after
+ * {@link #TTL} milliseconds, and when an id is not found. Such a rebuild happens once per id and type; further
+ * lookups that miss are answered from the index until it is invalidated or expires.
+ */
+public class CredentialsIndex {
+    /**
+     * The index is rebuilt when it is older than this many milliseconds.
+     */
+    static final long TTL = Long.getLong(CredentialsIndex.class.getName() + ".ttl", TimeUnit.MINUTES.toMillis(5));
+
+    private static final Logger               LOGGER   = Logger.getLogger(CredentialsIndex.class.getName());
+    /**
+     * Set while the index itself updates the system credentials, so that the resulting save does not
+     * invalidate the index.
+     */
+    private static final ThreadLocal<Boolean> UPDATING = new ThreadLocal<>();
+
+    private static volatile Snapshot snapshot;
+
+    private CredentialsIndex() {
+    }
+
+    /**
+     * Get the credentials of type credentialsClass identified by credentialsId.
+     *
+     * @param <T>              credential type
+     * @param credentialsId    the id of credentials
+     * @param credentialsClass the class of credentials to return
+     * @return credentials; null if there are none
+     */
+    public static <T extends Credentials> T get(final String credentialsId, final Class<T> credentialsClass) {
+        final Snapshot current = getSnapshot();
+        if (current == null) return null;
+
+        final T credentials = current.get(credentialsId, credentialsClass);
+        if (credentials != null) return credentials;
+
+        final String miss = credentialsClass.getName() + "|" + credentialsId;
+        if (current.misses.contains(miss)) return null;
+
+        // the credentials may have been added by a provider that does not report changes
+        final Snapshot rebuilt = rebuild(current);
+        if (rebuilt == null) return null;
+
+        final T found = rebuilt.get(credentialsId, credentialsClass);
+        if (found == null) rebuilt.misses.add(miss);
+        return found;
+    }
+
+    /**
+     * Replace the credentials identified by credentialsId within the system credentials store with credentials.
+     * The index is updated in place, so that the next lookup does not need to scan all credentials again.
+     *
+     * @param credentialsId the id of credentials to replace
+     * @param credentials   new credentials
+     * @return True if credentials were found and updated; False otherwise.
+     * @throws IOException If problems reading or writing to Jenkins Credential Store
+     */
+    public static boolean updateSystemCredentials(final String credentialsId, final Credentials credentials) throws IOException {
+        Snapshot current = getSnapshot();
+        if (current == null) return false;
+
+        StoredCredentials stored = current.system.get(credentialsId);
+        if (stored == null) {
+            final String miss = "system|" + credentialsId;
+            if (current.misses.contains(miss)) return false;
+
+            current = rebuild(current);
+            stored = current == null ? null : current.system.get(credentialsId);
+            if (stored == null) {
+                if (current != null) current.misses.add(miss);
+                return false;
+            }
+        }
+
+        final boolean wasUpdated;
+        UPDATING.set(Boolean.TRUE);
+        try {
+            wasUpdated = stored.store.updateCredentials(stored.domain, stored.credentials, credentials);
+        } finally {
+            UPDATING.remove();
+        }
+
+        if (wasUpdated) current.replace(credentialsId, stored, credentials);
+        return wasUpdated;
+    }
+
+    /**
+     * Drop the index; the next lookup builds it again.
+     */
+    public static void invalidate() {
+        snapshot = null;
+    }
+
+    private static Snapshot getSnapshot() {
+        final Snapshot current = snapshot;
+        if (current != null && current.isValid()) return current;
+        return rebuild(current);
+    }
+
+    private static synchronized Snapshot rebuild(final Snapshot stale) {
+        // another thread may have rebuilt the index in the meantime
+        final Snapshot current = snapshot;
+        if (current != stale && current != null && current.isValid()) return current;
+
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) return null;
+
+        LOGGER.fine("Building credentials index");
+        snapshot = Snapshot.build(jenkins);
+        return snapshot;
+    }
+
+    /**
+     * Get the ids of the system credentials that were added, removed or replaced since stale was built.
+     *
+     * @param stale   previous index; null if there was none
+     * @param current current index
+     * @return ids of changed credentials; every system credentials id if stale is null
+     */
+    private static Set<String> getChangedIds(final Snapshot stale, final Snapshot current) {
+        final Set<String> ids = new HashSet<>(current.system.keySet());
+        if (stale == null) return ids;
+
+        ids.addAll(stale.system.keySet());
+        ids.removeIf(id -> {
+            final StoredCredentials before = stale.system.get(id);
+            final StoredCredentials after  = current.system.get(id);
+            return before != null && after != null && before.credentials == after.credentials;
+        });
+        return ids;
+    }
+
+    /**
+     * Invalidates the index when the system credentials are saved, and drops the clients, tokens and service
+     * accounts cached for credentials that changed.
+     */
+    @Extension
+    public static class CredentialsSaveableListener extends SaveableListener {
+        @Override
+        public void onChange(final Saveable o, final XmlFile file) {
+            if (!(o instanceof SystemCredentialsProvider) || UPDATING.get() != null) return;
+
+            final Snapshot stale = snapshot;
+            invalidate();
+            final Snapshot current = getSnapshot();
+            if (current == null) return;
+
+            for (final String credentialsId : getChangedIds(stale, current)) {
+                LOGGER.fine("Credentials changed: " + credentialsId);
+                MarathonClientRegistry.invalidate(credentialsId);
+                TokenCache.invalidate(credentialsId);
+                DcosAuthImpl.invalidate(credentialsId);
+            }
+        }
+    }
+
+    /**
+     * Credentials within the system credentials store, together with the store and domain that hold them.
+     */
+    private static final class StoredCredentials {
+        private final CredentialsStore store;
+        private final Domain           domain;
+        private final Credentials      credentials;
+
+        StoredCredentials(final CredentialsStore store, final Domain domain, final Credentials credentials) {
+            this.store = store;
+            this.domain = domain;
+            this.credentials = credentials;
+        }
+    }
+
+    private static final class Snapshot {
+        private final Jenkins                        jenkins;
+        private final long                           created;
+        private final Map<String, List<Credentials>> byId;
+        private final Map<String, StoredCredentials> system;
+        /**
+         * Lookups that were not found after a rebuild, by credentials type and id.
+         */
+        private final Set<String>                    misses;
+
+        private Snapshot(final Jenkins jenkins) {
+            this.jenkins = jenkins;
+            this.created = System.currentTimeMillis();
+            this.byId = new ConcurrentHashMap<>();
+            this.system = new ConcurrentHashMap<>();
+            this.misses = ConcurrentHashMap.newKeySet();
+        }
+
+        static Snapshot build(final Jenkins jenkins) {
+            final Snapshot snapshot = new Snapshot(jenkins);
+
+            final List<Credentials> all = CredentialsProvider.lookupCredentials(Credentials.class,
+                    jenkins, ACL.SYSTEM, Collections.<DomainRequirement>emptyList());
+            for (final Credentials c : all) {
+                if (!(c instanceof IdCredentials)) continue;
+
+                snapshot.byId.computeIfAbsent(((IdCredentials) c).getId(), id -> new ArrayList<>(1)).add(c);
+            }
+
+            final SystemCredentialsProvider.ProviderImpl systemProvider = ExtensionList.lookup(CredentialsProvider.class)
+                    .get(SystemCredentialsProvider.ProviderImpl.class);
+            final CredentialsStore store = systemProvider == null ? null : systemProvider.getStore(jenkins);
+            if (store != null) {
+                for (final Domain d : store.getDomains()) {
+                    for (final Credentials c : store.getCredentials(d)) {
+                        if (!(c instanceof IdCredentials)) continue;
+
+                        final String id = ((IdCredentials) c).getId();
+                        if (!snapshot.system.containsKey(id)) {
+                            snapshot.system.put(id, new StoredCredentials(store, d, c));
+                        }
+                    }
+                }
+            }
+
+            return snapshot;
+        }
+
+        boolean isValid() {
+            return jenkins == Jenkins.getInstance() && System.currentTimeMillis() - created < TTL;
+        }
+
+        <T extends Credentials> T get(final String credentialsId, final Class<T> credentialsClass) {
+            final List<Credentials> matches = byId.get(credentialsId);
+            if (matches == null) return null;
+
+            for (final Credentials c : matches) {
+                if (credentialsClass.isInstance(c)) return credentialsClass.cast(c);
+            }
+            return null;
+        }
+
+        void replace(final String credentialsId, final StoredCredentials stored, final Credentials credentials) {
+            system.put(credentialsId, new StoredCredentials(stored.store, stored.domain, credentials));
+
+            final List<Credentials> matches = byId.get(credentialsId);
+            if (matches == null) return;
+
+            final List<Credentials> replaced = new ArrayList<>(matches.size());
+            for (final Credentials c : matches) {
+                replaced.add(c.equals(stored.credentials) ? credentials : c);
+            }
+            byId.put(credentialsId, replaced);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.mesosphere.velocity.marathon.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latest-wins bookkeeping for deployments of the same application by builds of the same job.
+ * <p>
+ * Every build registers its number when its definition is rendered. Right before a build sends its update to
+ * Marathon it checks whether a newer build registered in the meantime; if so, the newer build supersedes it and
+ * the redundant update is not sent. Builds that finish out of order therefore never roll back a newer version.
+ * <p>
+ * Only the {@link #SIZE} most recently deployed applications are tracked.
+ */
+public class DeploymentCoalescer {
+    /**
+     * Maximum number of jobs and applications tracked.
+     */
+    static final int SIZE = Integer.getInteger(DeploymentCoalescer.class.getName() + ".size", 1024);
+
+    private static final Map<String, Integer> LATEST = Collections.synchronizedMap(
+            new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Integer> eldest) {
+                    return size() > SIZE;
+                }
+            });
+
+    private DeploymentCoalescer() {
+    }
+
+    /**
+     * Register a build that is about to deploy.
+     *
+     * @param key         job and application (or group) id
+     * @param buildNumber number of the build
+     */
+    public static void register(final String key, final int buildNumber) {
+        LATEST.merge(key, buildNumber, Math::max);
+    }
+
+    /**
+     * Determine whether a newer build registered for key.
+     *
+     * @param key         job and application (or group) id
+     * @param buildNumber number of the build about to send its update
+     * @return number of the newest build; 0 if buildNumber is the newest
+     */
+    public static int getSupersedingBuild(final String key, final int buildNumber) {
+        final Integer latest = LATEST.get(key);
+        return latest != null && latest > buildNumber ? latest : 0;
+    }
+}
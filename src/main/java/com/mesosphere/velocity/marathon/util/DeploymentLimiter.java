@@ -0,0 +1,134 @@
+package com.mesosphere.velocity.marathon.util;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide limit on the number of concurrent updates per Marathon endpoint (scheme, host and port).
+ * <p>
+ * Build storms (e.g. a merge that triggers hundreds of jobs) would otherwise send all of their updates to the
+ * Marathon leader at once, causing cascades of 409 and 503 responses. Updates beyond the limit wait in a fair
+ * queue and the time spent waiting is reported to the build log. Slots are taken by
+ * {@link com.mesosphere.velocity.marathon.interfaces.MarathonBuilder#update()}; a slot is held for a single request only, so
+ * builds backing off between retries, waiting for the deployments that lock their application, or refreshing
+ * their token do not block others.
+ * <p>
+ * The default limit is {@link #MAX_CONCURRENT}; limits for single endpoints are given as a comma separated list of
+ * <code>url=limit</code> pairs in {@link #LIMITS}. A limit of 0 or less means unlimited.
+ */
+public class DeploymentLimiter {
+    /**
+     * Default maximum number of concurrent updates per endpoint.
+     */
+    static final int    MAX_CONCURRENT = Integer.getInteger(DeploymentLimiter.class.getName() + ".maxConcurrent", 10);
+    /**
+     * Limits for single endpoints, e.g. <code>https://marathon.example.com=2, http://10.0.0.1:8080=20</code>.
+     */
+    static final String LIMITS         = System.getProperty(DeploymentLimiter.class.getName() + ".limits", "");
+
+    private static final Logger                                   LOGGER          = Logger.getLogger(DeploymentLimiter.class.getName());
+    private static final Map<String, Integer>                     ENDPOINT_LIMITS = parseLimits(LIMITS);
+    private static final ConcurrentMap<String, DeploymentLimiter> LIMITERS        = new ConcurrentHashMap<>();
+    private static final Slot                                     NONE            = () -> {
+    };
+
+    private final String    endpoint;
+    private final int       limit;
+    private final Semaphore slots;
+
+    DeploymentLimiter(final String endpoint, final int limit) {
+        this.endpoint = endpoint;
+        this.limit = limit;
+        this.slots = limit > 0 ? new Semaphore(limit, true) : null;
+    }
+
+    /**
+     * Get the limiter for the endpoint of url, creating it if required.
+     *
+     * @param url Marathon URL
+     * @return deployment limiter
+     */
+    public static DeploymentLimiter forUrl(final String url) {
+        return LIMITERS.computeIfAbsent(HttpClientPool.getEndpoint(url), endpoint -> {
+            final Integer limit = ENDPOINT_LIMITS.get(endpoint);
+            return new DeploymentLimiter(endpoint, limit != null ? limit : MAX_CONCURRENT);
+        });
+    }
+
+    /**
+     * Wait for a slot.
+     *
+     * @param logger build log to report the time spent waiting to; null to report to the system log only
+     * @return slot to close once the request is done
+     * @throws InterruptedException if waiting for a slot was interrupted
+     */
+    public Slot acquire(final PrintStream logger) throws InterruptedException {
+        if (slots == null) return NONE;
+
+        if (!slots.tryAcquire()) {
+            if (logger != null) {
+                logger.println("[Marathon] " + limit + " updates to '" + endpoint + "' are in progress; waiting in queue.");
+            }
+            final long start = System.currentTimeMillis();
+            slots.acquire();
+            final long waited = System.currentTimeMillis() - start;
+            if (logger != null) logger.println("[Marathon] Waited " + waited + " ms for an update slot on '" + endpoint + "'.");
+            LOGGER.fine("Update to '" + endpoint + "' waited " + waited + " ms in queue.");
+        }
+        return slots::release;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get the number of updates waiting for a slot.
+     *
+     * @return queue length (an estimate)
+     */
+    public int getQueueLength() {
+        return slots != null ? slots.getQueueLength() : 0;
+    }
+
+    /**
+     * Parse a comma separated list of <code>url=limit</code> pairs. Invalid pairs are ignored.
+     *
+     * @param limits list of limits
+     * @return limit for each endpoint
+     */
+    static Map<String, Integer> parseLimits(final String limits) {
+        final Map<String, Integer> parsed = new HashMap<>();
+        for (final String pair : limits.split(",")) {
+            final String trimmed = pair.trim();
+            final int    index   = trimmed.lastIndexOf('=');
+            if (trimmed.isEmpty()) continue;
+            try {
+                if (index <= 0) throw new NumberFormatException();
+                parsed.put(HttpClientPool.getEndpoint(trimmed.substring(0, index).trim()),
+                        Integer.parseInt(trimmed.substring(index + 1).trim()));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring invalid deployment limit '" + pair + "'");
+            }
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    /**
+     * A held slot. Must be closed exactly once.
+     */
+    public interface Slot extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,49 @@
+package com.mesosphere.velocity.marathon.util;
+
+/**
+ * Decides whether a deployment to several Marathon instances succeeded, based on how many of them were updated.
+ */
+public enum FailurePolicy {
+    /**
+     * Every Marathon instance has to be updated.
+     */
+    ALL,
+    /**
+     * More than half of the Marathon instances have to be updated.
+     */
+    QUORUM,
+    /**
+     * At least one Marathon instance has to be updated.
+     */
+    ANY;
+
+    /**
+     * Determine whether the deployment succeeded.
+     *
+     * @param succeeded number of Marathon instances that were updated
+     * @param total     number of Marathon instances
+     * @return True if enough Marathon instances were updated; False otherwise.
+     */
+    public boolean isSatisfied(final int succeeded, final int total) {
+        switch (this) {
+            case ANY:
+                return succeeded > 0;
+            case QUORUM:
+                return succeeded > total / 2;
+            default:
+                return succeeded == total;
+        }
+    }
+
+    /**
+     * Get the policy with the given name, ignoring case.
+     *
+     * @param name policy name; ALL if null or empty
+     * @return failure policy
+     * @throws IllegalArgumentException if there is no policy with this name
+     */
+    public static FailurePolicy fromString(final String name) {
+        if (name == null || name.trim().isEmpty()) return ALL;
+        return valueOf(name.trim().toUpperCase());
+    }
+}
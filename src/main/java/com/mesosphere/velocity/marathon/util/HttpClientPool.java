@@ -0,0 +1,175 @@
+package com.mesosphere.velocity.marathon.util;
+
+import hudson.init.Terminator;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide pool of HTTP clients, one per endpoint (scheme, host and port).
+ * <p>
+ * Each client owns a pooled connection manager, so requests against the same endpoint reuse keep-alive
+ * connections instead of building a new client and connection manager for every request. Since clients are
+ * shared, callers should pass a context from {@link #newContext()} so that cookies are not shared between requests.
+ * <p>
+ * Long-lived streams, e.g. the Marathon event stream, use a separate client per endpoint from
+ * {@link #getStreamingClient(String)}, so that waiting deployments do not hold connections of the bounded pool
+ * used for requests. All clients are closed when Jenkins shuts down.
+ */
+public class HttpClientPool {
+    /**
+     * Maximum number of connections per endpoint.
+     */
+    static final int MAX_CONNECTIONS = Integer.getInteger(HttpClientPool.class.getName() + ".maxConnections", 10);
+
+    /**
+     * Maximum number of concurrent streams per endpoint.
+     */
+    static final int MAX_STREAMS = Integer.getInteger(HttpClientPool.class.getName() + ".maxStreams", 100);
+
+    /**
+     * Timeout in milliseconds for establishing a connection.
+     */
+    static final int CONNECT_TIMEOUT = Integer.getInteger(HttpClientPool.class.getName() + ".connectTimeout",
+            (int) TimeUnit.SECONDS.toMillis(10));
+
+    /**
+     * Timeout in milliseconds for waiting on data.
+     */
+    static final int SOCKET_TIMEOUT = Integer.getInteger(HttpClientPool.class.getName() + ".socketTimeout",
+            (int) TimeUnit.SECONDS.toMillis(30));
+
+    /**
+     * Timeout in milliseconds for leasing a connection from the pool.
+     */
+    static final int CONNECTION_REQUEST_TIMEOUT = Integer.getInteger(HttpClientPool.class.getName() + ".connectionRequestTimeout",
+            (int) TimeUnit.SECONDS.toMillis(10));
+
+    private static final Logger                                     LOGGER    = Logger.getLogger(HttpClientPool.class.getName());
+    private static final ConcurrentMap<String, CloseableHttpClient> CLIENTS   = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CloseableHttpClient> STREAMING = new ConcurrentHashMap<>();
+    private static final RequestConfig                              CONFIG    = RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT)
+            .setSocketTimeout(SOCKET_TIMEOUT)
+            .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT)
+            .build();
+
+    private HttpClientPool() {
+    }
+
+    /**
+     * Get the shared client for the endpoint of url.
+     *
+     * @param url a URL on the endpoint
+     * @return HTTP client
+     */
+    public static CloseableHttpClient getClient(final String url) {
+        return CLIENTS.computeIfAbsent(getEndpoint(url), endpoint -> {
+            LOGGER.fine("Creating HTTP client for '" + endpoint + "'");
+            return createClient(MAX_CONNECTIONS, CONFIG);
+        });
+    }
+
+    /**
+     * Get the client for long-lived streams on the endpoint of url. Its connections are not shared with
+     * {@link #getClient(String)}, and its requests have no socket timeout; callers are expected to abort them.
+     *
+     * @param url a URL on the endpoint
+     * @return HTTP client
+     */
+    public static CloseableHttpClient getStreamingClient(final String url) {
+        return STREAMING.computeIfAbsent(getEndpoint(url), endpoint -> {
+            LOGGER.fine("Creating streaming HTTP client for '" + endpoint + "'");
+            return createClient(MAX_STREAMS, streamingConfig());
+        });
+    }
+
+    /**
+     * Create a context for a single request, with a cookie store that is not shared with other requests.
+     *
+     * @return HTTP client context
+     */
+    public static HttpClientContext newContext() {
+        final HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(new BasicCookieStore());
+        return context;
+    }
+
+    /**
+     * Get the request configuration for long-lived streams, e.g. server-sent events. These requests have no socket
+     * timeout; callers are expected to abort them.
+     *
+     * @return request configuration
+     */
+    private static RequestConfig streamingConfig() {
+        return RequestConfig.copy(CONFIG).setSocketTimeout(0).build();
+    }
+
+    /**
+     * Close all clients and their connection pools.
+     */
+    @Terminator
+    public static void shutdown() {
+        close(CLIENTS);
+        close(STREAMING);
+    }
+
+    private static void close(final ConcurrentMap<String, CloseableHttpClient> clients) {
+        for (final String endpoint : clients.keySet()) {
+            final CloseableHttpClient client = clients.remove(endpoint);
+            if (client == null) continue;
+
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close HTTP client for '" + endpoint + "'", e);
+            }
+        }
+    }
+
+    static int size() {
+        return CLIENTS.size();
+    }
+
+    static int streamingSize() {
+        return STREAMING.size();
+    }
+
+    /**
+     * Get the endpoint (scheme, host and port) of url. If url cannot be parsed, url itself is used.
+     *
+     * @param url a URL
+     * @return endpoint
+     */
+    static String getEndpoint(final String url) {
+        try {
+            final URI uri = URI.create(url);
+            if (uri.getHost() == null) return url;
+            return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    private static CloseableHttpClient createClient(final int maxConnections, final RequestConfig config) {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .build();
+    }
+}
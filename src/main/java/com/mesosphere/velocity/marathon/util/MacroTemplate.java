@@ -0,0 +1,189 @@
+package com.mesosphere.velocity.marathon.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A string with Jenkins variable references ($VAR, ${VAR}), compiled once into literals and references.
+ * <p>
+ * Expansion follows {@link hudson.Util#replaceMacro(String, Map)}: "$$" is an escaped dollar sign, references
+ * to unknown variables are kept as they are, and expanded values are not scanned for further references. Unlike
+ * replaceMacro, the string is not rescanned on every expansion, and strings without references are returned as
+ * they are.
+ * <p>
+ * Templates are cached by their text, so the fields of a configuration are compiled once and an edited
+ * configuration simply compiles its new text.
+ */
+public class MacroTemplate {
+    /**
+     * Maximum number of compiled templates kept.
+     */
+    static final int CACHE_SIZE = Integer.getInteger(MacroTemplate.class.getName() + ".cacheSize", 1024);
+
+    private static final Map<String, MacroTemplate> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, MacroTemplate>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, MacroTemplate> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private final String   template;
+    /**
+     * Literal text, or the original reference text for variables (kept when the variable is unknown).
+     */
+    private final String[] text;
+    /**
+     * Variable names; null for literals.
+     */
+    private final String[] names;
+
+    private MacroTemplate(final String template, final List<String> text, final List<String> names) {
+        this.template = template;
+        this.text = text.toArray(new String[text.size()]);
+        this.names = names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Get the compiled template for s.
+     *
+     * @param s string with variable references
+     * @return template; null if s is null
+     */
+    public static MacroTemplate of(final String s) {
+        if (s == null) return null;
+        if (CACHE_SIZE <= 0) return compile(s);
+
+        final MacroTemplate cached = CACHE.get(s);
+        if (cached != null) return cached;
+
+        final MacroTemplate compiled = compile(s);
+        CACHE.put(s, compiled);
+        return compiled;
+    }
+
+    /**
+     * Replace the variable references in s, like {@link hudson.Util#replaceMacro(String, Map)}.
+     *
+     * @param s         string with variable references
+     * @param variables variable values
+     * @return expanded string; null if s is null
+     */
+    public static String expand(final String s, final Map<String, String> variables) {
+        final MacroTemplate template = of(s);
+        return template != null ? template.expand(variables) : null;
+    }
+
+    /**
+     * Split s into literals and variable references, without caching the template. Use this for strings that are
+     * expanded only once, e.g. the values of a definition file.
+     *
+     * @param s string with variable references
+     * @return template
+     */
+    public static MacroTemplate compile(final String s) {
+        final List<String>  text    = new ArrayList<>();
+        final List<String>  names   = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        final int           length  = s.length();
+
+        int i = 0;
+        while (i < length) {
+            final char c = s.charAt(i);
+            if (c != '$' || i + 1 >= length) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+
+            final char next = s.charAt(i + 1);
+            if (next == '$') {
+                // escaped dollar sign
+                literal.append('$');
+                i += 2;
+            } else if (next == '{') {
+                int end = i + 2;
+                while (end < length && isNameChar(s.charAt(end), true)) end++;
+                if (end > i + 2 && end < length && s.charAt(end) == '}') {
+                    addLiteral(literal, text, names);
+                    text.add(s.substring(i, end + 1));
+                    names.add(s.substring(i + 2, end));
+                    i = end + 1;
+                } else {
+                    literal.append(c);
+                    i++;
+                }
+            } else if (isNameChar(next, false)) {
+                int end = i + 2;
+                while (end < length && isNameChar(s.charAt(end), false)) end++;
+                addLiteral(literal, text, names);
+                text.add(s.substring(i, end));
+                names.add(s.substring(i + 1, end));
+                i = end;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        addLiteral(literal, text, names);
+        return new MacroTemplate(s, text, names);
+    }
+
+    private static void addLiteral(final StringBuilder literal, final List<String> text, final List<String> names) {
+        if (literal.length() == 0) return;
+        text.add(literal.toString());
+        names.add(null);
+        literal.setLength(0);
+    }
+
+    private static boolean isNameChar(final char c, final boolean braced) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_'
+                || (braced && c == '.');
+    }
+
+    /**
+     * Replace the variable references with their values.
+     *
+     * @param variables variable values; null if there are none
+     * @return expanded string
+     */
+    public String expand(final Map<String, String> variables) {
+        if (text.length == 0) return "";
+        if (text.length == 1) {
+            if (names[0] == null) return text[0];
+            final String value = variables != null ? variables.get(names[0]) : null;
+            return value != null ? value : text[0];
+        }
+
+        final StringBuilder sb = new StringBuilder(template.length() + 16);
+        for (int i = 0; i < text.length; i++) {
+            final String value = names[i] != null && variables != null ? variables.get(names[i]) : null;
+            sb.append(value != null ? value : text[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Determine whether the template references any variables.
+     *
+     * @return True if there are variable references; False if the template is a literal.
+     */
+    public boolean hasVariables() {
+        for (final String name : names) {
+            if (name != null) return true;
+        }
+        return false;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
@@ -1,16 +1,16 @@
 package com.mesosphere.velocity.marathon.util;
 
 import com.cloudbees.plugins.credentials.Credentials;
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
-import hudson.security.ACL;
-import jenkins.model.Jenkins;
+import hudson.Util;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 
-import java.util.Collections;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 
 public class MarathonBuilderUtils {
     /**
@@ -21,6 +21,30 @@ public class MarathonBuilderUtils {
      * Default filepath for the rendered JSON that was sent to the Marathon instance.
      */
     public static final String MARATHON_RENDERED_JSON = "marathon-rendered-${BUILD_NUMBER}.json";
+    /**
+     * Default number of seconds to wait for a deployment to finish.
+     */
+    public static final long   DEPLOYMENT_TIMEOUT     = 600L;
+    /**
+     * Label holding the hash of the application definition deployed by this plugin.
+     */
+    public static final String CONTENT_HASH_LABEL     = "jenkins.marathon.content-hash";
+
+    /**
+     * Create the result that pipeline steps return for a single deployment.
+     *
+     * @param status       "SUCCESS", "FAILURE", ...
+     * @param deploymentId Marathon deployment id (may be null)
+     * @param message      error or status message (may be null)
+     * @return map with "status", "deploymentId" and "message"
+     */
+    public static Map<String, String> deploymentResult(final String status, final String deploymentId, final String message) {
+        final Map<String, String> result = new HashMap<>(4);
+        result.put("status", status);
+        result.put("deploymentId", deploymentId);
+        result.put("message", message);
+        return result;
+    }
 
     /**
      * Remove the trailing slash from url.
@@ -32,6 +56,32 @@ public class MarathonBuilderUtils {
         return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
     }
 
+    /**
+     * Compute the SHA-256 digest of value. This is used to fingerprint secrets and file contents
+     * without holding on to the original value.
+     *
+     * @param value the value to digest
+     * @return hex encoded SHA-256 digest
+     */
+    public static String digest(final String value) {
+        return digest(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compute the SHA-256 digest of bytes.
+     *
+     * @param bytes the bytes to digest
+     * @return hex encoded SHA-256 digest
+     */
+    public static String digest(final byte[] bytes) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Get the token from the credentials identified by the given id.
      *
@@ -53,7 +103,8 @@ public class MarathonBuilderUtils {
     }
 
     /**
-     * Get the credentials identified by the given id from the Jenkins credential store.
+     * Get the credentials identified by the given id from the Jenkins credential store. Credentials are resolved
+     * through the {@link CredentialsIndex} instead of scanning all credentials.
      *
      * @param <T>              credential type
      * @param credentialsId    The id for the credentials
@@ -63,11 +114,7 @@ public class MarathonBuilderUtils {
     public static <T extends Credentials> T getJenkinsCredentials(final String credentialsId, final Class<T> credentialsClass) {
         if (StringUtils.isEmpty(credentialsId))
             return null;
-        return CredentialsMatchers.firstOrNull(
-                CredentialsProvider.lookupCredentials(credentialsClass,
-                        Jenkins.getInstance(), ACL.SYSTEM, Collections.<DomainRequirement>emptyList()),
-                CredentialsMatchers.withId(credentialsId)
-        );
+        return CredentialsIndex.get(credentialsId, credentialsClass);
     }
 
 }
@@ -0,0 +1,161 @@
+package com.mesosphere.velocity.marathon.util;
+
+import mesosphere.marathon.client.Marathon;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide registry of Marathon clients.
+ * <p>
+ * Clients are keyed by the Marathon URL, the Jenkins credentials id and the authentication type. Deployments
+ * against the same Marathon instance with the same credentials share a single client, and therefore share the
+ * keep-alive connections held by the underlying HTTP connection pool, instead of paying for a new client, a new
+ * connection and a new TLS handshake on every deployment.
+ * <p>
+ * Each entry remembers a fingerprint of the credential material it was built with. When the credential changes
+ * (e.g. a refreshed token) the client is rebuilt. Clients that have not been used for a while are evicted.
+ */
+public class MarathonClientRegistry {
+    /**
+     * Clients that have not been used for this many milliseconds are evicted from the registry.
+     */
+    static final long IDLE_TIMEOUT = Long.getLong(MarathonClientRegistry.class.getName() + ".idleTimeout",
+            TimeUnit.MINUTES.toMillis(30));
+
+    private static final Logger                    LOGGER  = Logger.getLogger(MarathonClientRegistry.class.getName());
+    private static final ConcurrentMap<Key, Entry> CLIENTS = new ConcurrentHashMap<>();
+
+    private MarathonClientRegistry() {
+    }
+
+    /**
+     * Get the client registered for url, credentialsId and authType. A new client is created with factory if
+     * there is none yet, if the registered client has been idle for too long, or if it was created with
+     * different credential material.
+     *
+     * @param url           Marathon URL
+     * @param credentialsId Jenkins credentials id (may be null)
+     * @param authType      authentication mechanism used by the client
+     * @param fingerprint   fingerprint of the credential material used by the client (may be null)
+     * @param factory       creates a new client when required
+     * @return Marathon client
+     */
+    public static Marathon getClient(final String url,
+                                     final String credentialsId,
+                                     final AuthType authType,
+                                     final String fingerprint,
+                                     final ClientFactory factory) {
+        final long now = System.currentTimeMillis();
+        evictIdle(now);
+
+        final Entry entry = CLIENTS.compute(new Key(url, credentialsId, authType), (key, existing) -> {
+            if (existing != null && Objects.equals(existing.fingerprint, fingerprint)) return existing;
+            if (existing != null) LOGGER.fine("Credentials for '" + url + "' changed; replacing Marathon client.");
+            return new Entry(factory.create(), fingerprint, now);
+        });
+
+        entry.lastUsed = now;
+        return entry.client;
+    }
+
+    /**
+     * Remove all clients registered for credentialsId.
+     *
+     * @param credentialsId Jenkins credentials id
+     */
+    public static void invalidate(final String credentialsId) {
+        final Iterator<Key> keys = CLIENTS.keySet().iterator();
+        while (keys.hasNext()) {
+            if (Objects.equals(keys.next().credentialsId, credentialsId)) keys.remove();
+        }
+    }
+
+    /**
+     * Remove all registered clients.
+     */
+    public static void clear() {
+        CLIENTS.clear();
+    }
+
+    static int size() {
+        return CLIENTS.size();
+    }
+
+    /**
+     * Remove clients that have not been used since IDLE_TIMEOUT milliseconds before now.
+     *
+     * @param now current time in milliseconds
+     */
+    static void evictIdle(final long now) {
+        final Iterator<Map.Entry<Key, Entry>> entries = CLIENTS.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Key, Entry> e = entries.next();
+            if (now - e.getValue().lastUsed > IDLE_TIMEOUT) {
+                LOGGER.fine("Evicting idle Marathon client for '" + e.getKey().url + "'");
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * The authentication mechanism a client uses.
+     */
+    public enum AuthType {
+        NONE,
+        BASIC,
+        TOKEN
+    }
+
+    /**
+     * Creates a Marathon client when the registry does not hold a usable one.
+     */
+    public interface ClientFactory {
+        Marathon create();
+    }
+
+    private static final class Key {
+        private final String   url;
+        private final String   credentialsId;
+        private final AuthType authType;
+
+        Key(final String url, final String credentialsId, final AuthType authType) {
+            this.url = url;
+            this.credentialsId = credentialsId;
+            this.authType = authType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, credentialsId, authType);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof Key)) return false;
+
+            final Key key = (Key) obj;
+            return Objects.equals(key.url, this.url) &&
+                    Objects.equals(key.credentialsId, this.credentialsId) &&
+                    key.authType == this.authType;
+        }
+    }
+
+    private static final class Entry {
+        private final    Marathon client;
+        private final    String   fingerprint;
+        private volatile long     lastUsed;
+
+        Entry(final Marathon client, final String fingerprint, final long lastUsed) {
+            this.client = client;
+            this.fingerprint = fingerprint;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
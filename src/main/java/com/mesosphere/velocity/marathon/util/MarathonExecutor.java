@@ -0,0 +1,73 @@
+package com.mesosphere.velocity.marathon.util;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, plugin-owned executor that runs deployments on behalf of pipeline steps, so that neither the CPS VM
+ * thread nor an executor slot is blocked while talking to Marathon. Work beyond {@link #THREADS} concurrent
+ * deployments is queued.
+ */
+public class MarathonExecutor {
+    /**
+     * Maximum number of threads.
+     */
+    static final int THREADS = Integer.getInteger(MarathonExecutor.class.getName() + ".threads", 10);
+
+    private static ExecutorService executor;
+    private static ExecutorService targetExecutor;
+
+    private MarathonExecutor() {
+    }
+
+    /**
+     * Get the executor, creating it if required.
+     *
+     * @return executor
+     */
+    public static synchronized ExecutorService get() {
+        if (executor == null) executor = newPool("Marathon deployment");
+        return executor;
+    }
+
+    /**
+     * Get the executor that updates the individual Marathon instances of a deployment to several instances,
+     * creating it if required. This is separate from {@link #get()} because deployments running there wait for
+     * these updates; sharing a pool could leave every thread waiting for work queued behind it.
+     *
+     * @return executor
+     */
+    public static synchronized ExecutorService getTargetExecutor() {
+        if (targetExecutor == null) targetExecutor = newPool("Marathon target update");
+        return targetExecutor;
+    }
+
+    private static ExecutorService newPool(final String name) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Stop the executor and interrupt running deployments.
+     */
+    @Terminator
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (targetExecutor != null) {
+            targetExecutor.shutdownNow();
+            targetExecutor = null;
+        }
+    }
+}
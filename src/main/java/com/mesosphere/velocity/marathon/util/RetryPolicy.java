@@ -0,0 +1,218 @@
+package com.mesosphere.velocity.marathon.util;
+
+import com.mesosphere.velocity.marathon.exceptions.AuthenticationException;
+import com.mesosphere.velocity.marathon.exceptions.CircuitOpenException;
+import com.mesosphere.velocity.marathon.exceptions.UpdateInterruptedException;
+import com.mesosphere.velocity.marathon.interfaces.MarathonBuilder;
+import mesosphere.marathon.client.MarathonException;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Retries Marathon requests that failed with a retryable status or a connection error, using exponential backoff
+ * with full jitter.
+ * <p>
+ * The delay before attempt <i>n</i> is a random value between 0 and
+ * <code>min(maxDelay, initialDelay * 2^(n - 1))</code>, so concurrent builds do not retry in lockstep. Retrying
+ * stops when the next attempt would start after the time budget for the deployment has been used up, or after
+ * {@link #MAX_ATTEMPTS} attempts if that is set.
+ * <p>
+ * Retryable statuses are given as a comma separated list of status codes (<code>409</code>) or status classes
+ * (<code>5xx</code>). By default, 409 (Conflict) and the 5xx responses Marathon returns while it elects a new
+ * leader are retried.
+ */
+public class RetryPolicy {
+    /**
+     * Maximum number of attempts, including the first one; 0 or less to retry until the time budget is used up.
+     */
+    static final int    MAX_ATTEMPTS       = Integer.getInteger(RetryPolicy.class.getName() + ".maxAttempts", 0);
+    /**
+     * Upper bound of the delay before the first retry, in milliseconds.
+     */
+    static final long   INITIAL_DELAY      = Long.getLong(RetryPolicy.class.getName() + ".initialDelay",
+            TimeUnit.SECONDS.toMillis(1));
+    /**
+     * Upper bound of the delay before any retry, in milliseconds.
+     */
+    static final long   MAX_DELAY          = Long.getLong(RetryPolicy.class.getName() + ".maxDelay",
+            TimeUnit.SECONDS.toMillis(30));
+    /**
+     * Milliseconds after the first attempt in which retries may be started.
+     */
+    static final long   TIME_BUDGET        = Long.getLong(RetryPolicy.class.getName() + ".timeBudget",
+            TimeUnit.MINUTES.toMillis(5));
+    /**
+     * Statuses that are retried. 409 (Conflict) is returned while the application is locked by another deployment,
+     * 5xx while Marathon has no leader.
+     */
+    static final String RETRYABLE_STATUSES = System.getProperty(RetryPolicy.class.getName() + ".retryableStatuses", "409, 5xx");
+
+    private static final Logger      LOGGER  = Logger.getLogger(RetryPolicy.class.getName());
+    private static final RetryPolicy DEFAULT = new RetryPolicy(MAX_ATTEMPTS, INITIAL_DELAY, MAX_DELAY, TIME_BUDGET, RETRYABLE_STATUSES);
+
+    private final int          maxAttempts;
+    private final long         initialDelay;
+    private final long         maxDelay;
+    private final long         timeBudget;
+    private final Set<Integer> statuses;
+    private final Set<Integer> statusClasses;
+
+    /**
+     * @param maxAttempts       maximum number of attempts, including the first one; 0 or less for no maximum
+     * @param initialDelay      upper bound of the delay before the first retry, in milliseconds
+     * @param maxDelay          upper bound of the delay before any retry, in milliseconds
+     * @param timeBudget        milliseconds after the first attempt in which retries may be started
+     * @param retryableStatuses comma separated status codes ("409") or status classes ("5xx")
+     */
+    public RetryPolicy(final int maxAttempts, final long initialDelay, final long maxDelay, final long timeBudget,
+                       final String retryableStatuses) {
+        this.maxAttempts = Math.max(0, maxAttempts);
+        this.initialDelay = Math.max(0, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        this.timeBudget = Math.max(0, timeBudget);
+        this.statuses = new HashSet<>();
+        this.statusClasses = new HashSet<>();
+
+        for (final String status : retryableStatuses.split(",")) {
+            final String trimmed = status.trim().toLowerCase();
+            if (trimmed.isEmpty()) continue;
+            try {
+                if (trimmed.matches("[1-5]xx")) {
+                    statusClasses.add(trimmed.charAt(0) - '0');
+                } else {
+                    statuses.add(Integer.parseInt(trimmed));
+                }
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring invalid retryable status '" + status + "'");
+            }
+        }
+    }
+
+    /**
+     * Get the policy configured through system properties.
+     *
+     * @return default retry policy
+     */
+    public static RetryPolicy getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Determine whether a request that failed with e may be retried.
+     *
+     * @param e exception thrown for the failed request
+     * @return True if the status of e is retryable; False otherwise. Requests failed fast by an open
+     * {@link CircuitBreaker}, and interrupted updates, are never retryable.
+     */
+    public boolean isRetryable(final MarathonException e) {
+        if (e instanceof CircuitOpenException || e instanceof UpdateInterruptedException) return false;
+        return statuses.contains(e.getStatus()) || statusClasses.contains(e.getStatus() / 100);
+    }
+
+    /**
+     * Determine whether a request that failed with e failed to reach Marathon, e.g. because the connection was
+     * refused or reset. Such errors are raised as runtime exceptions caused by an {@link IOException}.
+     *
+     * @param e exception thrown for the failed request
+     * @return True if e was caused by an {@link IOException}; False otherwise.
+     */
+    public boolean isRetryable(final RuntimeException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Update builder, retrying the update with this policy. Every request of the update queues for a slot on the
+     * Marathon endpoint of builder (see {@link MarathonBuilder#update()}).
+     *
+     * @param builder built Marathon builder
+     * @param logger  build log to report queueing and retries to
+     * @throws MarathonException       the error of the last attempt
+     * @throws AuthenticationException if authentication failed
+     * @throws InterruptedException    if waiting for a slot or the next attempt was interrupted
+     */
+    public void update(final MarathonBuilder builder, final PrintStream logger)
+            throws MarathonException, AuthenticationException, InterruptedException {
+        builder.setLogger(logger);
+        try {
+            execute(builder::update, logger);
+        } catch (UpdateInterruptedException e) {
+            // the update restored the interrupt status; it is reported as an InterruptedException instead
+            Thread.interrupted();
+            throw new InterruptedException(e.getMessage());
+        }
+    }
+
+    /**
+     * Compute the delay before the given retry.
+     *
+     * @param retry number of the retry, starting at 1
+     * @return delay in milliseconds
+     */
+    long delay(final int retry) {
+        final long ceiling = Math.min(maxDelay, initialDelay << Math.min(retry - 1, 30));
+        return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+    }
+
+    /**
+     * Run attempt, retrying it while it fails with a retryable status or a connection error, and neither the time
+     * budget nor the attempts are used up.
+     *
+     * @param attempt the request to make
+     * @param logger  build log to report retries to
+     * @param <T>     result type
+     * @return result of the first successful attempt
+     * @throws MarathonException       the error of the last attempt; use {@link #isRetryable(MarathonException)}
+     *                                 to tell whether retries were used up
+     * @throws AuthenticationException if authentication failed
+     * @throws InterruptedException    if waiting for the next attempt was interrupted
+     */
+    public <T> T execute(final Attempt<T> attempt, final PrintStream logger)
+            throws MarathonException, AuthenticationException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeBudget;
+
+        for (int attempts = 1; ; attempts++) {
+            final MarathonException marathonFailure;
+            final RuntimeException  transportFailure;
+            try {
+                return attempt.run();
+            } catch (MarathonException e) {
+                if (!isRetryable(e)) throw e;
+                marathonFailure = e;
+                transportFailure = null;
+            } catch (RuntimeException e) {
+                if (!isRetryable(e)) throw e;
+                marathonFailure = null;
+                transportFailure = e;
+            }
+
+            final long delay = delay(attempts);
+            if ((maxAttempts > 0 && attempts >= maxAttempts) || System.currentTimeMillis() + delay > deadline) {
+                if (marathonFailure != null) throw marathonFailure;
+                throw transportFailure;
+            }
+
+            final String message = marathonFailure != null ? marathonFailure.getMessage() : transportFailure.toString();
+            logger.println("[Marathon] " + message + "; retrying in " + delay + " ms (attempt " + (attempts + 1)
+                    + (maxAttempts > 0 ? " of " + maxAttempts : "") + ").");
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * A single attempt at a Marathon request.
+     *
+     * @param <T> result type
+     */
+    public interface Attempt<T> {
+        T run() throws MarathonException, AuthenticationException, InterruptedException;
+    }
+}
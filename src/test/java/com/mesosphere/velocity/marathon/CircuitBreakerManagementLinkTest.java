@@ -0,0 +1,32 @@
+package com.mesosphere.velocity.marathon;
+
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.mesosphere.velocity.marathon.util.CircuitBreaker;
+import hudson.security.csrf.DefaultCrumbIssuer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+
+public class CircuitBreakerManagementLinkTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    /**
+     * Test that the reset form closes an open breaker with CSRF protection enabled.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testReset() throws Exception {
+        j.jenkins.setCrumbIssuer(new DefaultCrumbIssuer(false));
+
+        final CircuitBreaker breaker = CircuitBreaker.forUrl("http://marathon-breaker-test:8080");
+        while (breaker.getState() == CircuitBreaker.State.CLOSED) breaker.onFailure("503 Service Unavailable");
+
+        final HtmlPage page = j.createWebClient().goTo("marathon-circuit-breakers");
+        j.submit(page.getFormByName("reset"));
+        assertEquals("Breaker should be closed", CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,142 @@
+package com.mesosphere.velocity.marathon;
+
+import hudson.model.Result;
+import net.sf.json.JSONObject;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class MarathonParallelStepTest {
+    @Rule
+    public JenkinsRule j    = new JenkinsRule();
+    @Rule
+    public TestName    name = new TestName();
+
+    /**
+     * An HTTP Server to receive requests from the plugin.
+     */
+    private MockWebServer httpServer;
+
+    @Before
+    public void setUp() throws IOException {
+        httpServer = new MockWebServer();
+        httpServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        httpServer.shutdown();
+        httpServer = null;
+    }
+
+    /**
+     * Test that every application is deployed with its own id and that a result is returned for each.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testParallelDeployments() throws Exception {
+        httpServer.setDispatcher(appDispatcher(null));
+
+        final WorkflowRun run = j.assertBuildStatus(Result.SUCCESS, runScript(3));
+        j.assertLogContains("RESULT web SUCCESS dep-/v2/apps/web", run);
+        j.assertLogContains("RESULT api SUCCESS dep-/v2/apps/api", run);
+        j.assertLogContains("RESULT worker SUCCESS dep-/v2/apps/worker", run);
+
+        final Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            final RecordedRequest request = httpServer.takeRequest();
+            assertEquals("Wrong method", "PUT", request.getMethod());
+            ids.add(JSONObject.fromObject(request.getBody().readUtf8()).getString("id"));
+        }
+        assertEquals("Each application should be deployed once", 3, ids.size());
+    }
+
+    /**
+     * Test that a failed application fails the build without stopping the other deployments.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testParallelDeploymentFailure() throws Exception {
+        httpServer.setDispatcher(appDispatcher("/v2/apps/api"));
+
+        final WorkflowRun run = j.assertBuildStatus(Result.FAILURE, runScript(1));
+        j.assertLogContains("RESULT web SUCCESS", run);
+        j.assertLogContains("RESULT api FAILURE", run);
+        j.assertLogContains("RESULT worker SUCCESS", run);
+        assertEquals("All applications should be deployed", 3, httpServer.getRequestCount());
+    }
+
+    /**
+     * Test that a step without "url" fails the build with a clear error instead of a NullPointerException.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testMissingUrl() throws Exception {
+        final String script = "node {\n" +
+                "writeFile(encoding: 'utf-8', file: 'web.json', text: '{\"id\": \"web\"}');\n" +
+                "marathonParallel(apps: ['web': 'web.json']);\n" +
+                "}";
+
+        final WorkflowJob job = j.jenkins.createProject(WorkflowJob.class, name.getMethodName());
+        job.setDefinition(new CpsFlowDefinition(script, true));
+
+        final WorkflowRun run = j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+        j.assertLogContains("url is required", run);
+        assertEquals("No request should be made", 0, httpServer.getRequestCount());
+    }
+
+    private WorkflowRun runScript(final int parallelism) throws Exception {
+        final String script = "node {\n" +
+                "writeFile(encoding: 'utf-8', file: 'web.json', text: '{\"id\": \"web\"}');\n" +
+                "writeFile(encoding: 'utf-8', file: 'api.json', text: '{\"id\": \"api\"}');\n" +
+                "writeFile(encoding: 'utf-8', file: 'worker.json', text: '{\"id\": \"worker\"}');\n" +
+                "def results = marathonParallel(url: '" + TestUtils.getHttpAddresss(httpServer) + "', parallelism: " + parallelism + ",\n" +
+                "    apps: ['web': 'web.json', 'api': 'api.json', 'worker': 'worker.json']);\n" +
+                "for (id in ['web', 'api', 'worker']) { echo \"RESULT ${id} ${results[id].status} ${results[id].deploymentId}\" }\n" +
+                "}";
+
+        final WorkflowJob job = j.jenkins.createProject(WorkflowJob.class, name.getMethodName());
+        job.setDefinition(new CpsFlowDefinition(script, true));
+        return job.scheduleBuild2(0).get();
+    }
+
+    /**
+     * A stand-in for Marathon that accepts every application update, except for failingPath.
+     *
+     * @param failingPath request path answered with a 400 (may be null)
+     * @return dispatcher
+     */
+    private static Dispatcher appDispatcher(final String failingPath) {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                final String path = request.getPath().split("\\?")[0];
+                if (path.equals(failingPath)) {
+                    return new MockResponse().setResponseCode(400).setHeader("Content-Type", "application/json")
+                            .setBody("{\"message\": \"invalid\"}");
+                }
+                return new MockResponse().setHeader("Content-Type", "application/json")
+                        .setBody("{\"version\": \"one\", \"deploymentId\": \"dep-" + path + "\"}");
+            }
+        };
+    }
+}
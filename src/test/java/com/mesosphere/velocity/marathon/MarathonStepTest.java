@@ -1,9 +1,13 @@
 package com.mesosphere.velocity.marathon;
 
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
 import hudson.model.Result;
 import net.sf.json.JSONObject;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
@@ -15,6 +19,8 @@ import org.junit.rules.TestName;
 import org.jvnet.hudson.test.JenkinsRule;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 
@@ -120,13 +126,13 @@ public class MarathonStepTest {
      */
     @Test
     public void testStepMaxRetries() throws Exception {
-        TestUtils.enqueueFailureResponse(httpServer, 409);
-        TestUtils.enqueueFailureResponse(httpServer, 409);
-        TestUtils.enqueueFailureResponse(httpServer, 409);
+        final AtomicInteger updates = new AtomicInteger();
+        TestUtils.setConflictDispatcher(httpServer, updates);
 
         final WorkflowJob job = basicSetup();
         final WorkflowRun run = basicRunWithFailure(job);
-        assertEquals("Only 1 request should be made", 1, httpServer.getRequestCount());
+        assertEquals("Should be 3 attempts", 3, updates.get());
+        j.assertLogContains("retrying in", run);
         j.assertLogContains("Client Error", run);
         j.assertLogContains("http status: 409", run);
     }
@@ -215,6 +221,139 @@ public class MarathonStepTest {
                 requestPath);
     }
 
+    /**
+     * Test that the step waits for the deployment to succeed when "waitForDeployment" is set.
+     *
+     * @throws Exception when problems happen
+     */
+    @Test
+    public void testStepWaitForDeployment() throws Exception {
+        httpServer.setDispatcher(deploymentDispatcher("deployment_success"));
+
+        final WorkflowJob job = basicSetupWithScript(generateWaitScript());
+        final WorkflowRun run = basicRunWithSuccess(job);
+        j.assertLogContains("Waiting for deployment 'dep-1' to finish", run);
+        j.assertLogContains("Deployment finished", run);
+    }
+
+    /**
+     * Test that a failed deployment fails the build when "waitForDeployment" is set.
+     *
+     * @throws Exception when problems happen
+     */
+    @Test
+    public void testStepWaitForFailedDeployment() throws Exception {
+        httpServer.setDispatcher(deploymentDispatcher("deployment_failed"));
+
+        final WorkflowJob job = basicSetupWithScript(generateWaitScript());
+        final WorkflowRun run = basicRunWithFailure(job);
+        j.assertLogContains("Deployment 'dep-1' failed", run);
+    }
+
+    /**
+     * Test that stopping a build cancels a step that is waiting for a deployment.
+     *
+     * @throws Exception when problems happen
+     */
+    @Test
+    public void testStepStopCancelsWait() throws Exception {
+        final Dispatcher finished = deploymentDispatcher("deployment_success");
+        httpServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) throws InterruptedException {
+                if (request.getPath().startsWith("/v2/events")) {
+                    // an event stream that stays open without reporting the deployment
+                    return new MockResponse().setHeader("Content-Type", "text/event-stream")
+                            .setBody(StringUtils.repeat(":\n", 500)).throttleBody(2, 1, TimeUnit.SECONDS);
+                }
+                return finished.dispatch(request);
+            }
+        });
+
+        final WorkflowJob job = basicSetupWithScript(generateWaitScript());
+        final WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+        while (!JenkinsRule.getLog(run).contains("Waiting for deployment")) {
+            Thread.sleep(100L);
+        }
+
+        run.doStop();
+        j.waitForCompletion(run);
+        j.assertBuildStatus(Result.ABORTED, run);
+    }
+
+    /**
+     * Test that the application is deployed to every target and that the failure policy decides the result.
+     *
+     * @throws Exception when problems happen
+     */
+    @Test
+    public void testStepMultipleTargets() throws Exception {
+        final MockWebServer second = new MockWebServer();
+        second.start();
+        try {
+            TestUtils.enqueueJsonResponse(httpServer, GENERIC_RESPONSE);
+            TestUtils.enqueueFailureResponse(second, 400);
+            WorkflowRun run = basicRunWithResult(basicSetupWithScript(generateTargetsScript(second, "ANY")), Result.UNSTABLE);
+            j.assertLogContains("1 of 2 Marathon instances were updated", run);
+            j.assertLogContains("RESULT SUCCESS FAILURE", run);
+            assertEquals("First instance should be updated", 1, httpServer.getRequestCount());
+            assertEquals("Second instance should be updated", 1, second.getRequestCount());
+
+            TestUtils.enqueueJsonResponse(httpServer, GENERIC_RESPONSE);
+            TestUtils.enqueueFailureResponse(second, 400);
+            final WorkflowJob job = j.jenkins.createProject(WorkflowJob.class, name.getMethodName() + "All");
+            job.setDefinition(new CpsFlowDefinition(generateTargetsScript(second, "ALL"), true));
+            run = basicRunWithFailure(job);
+            j.assertLogContains("failure policy ALL is not satisfied", run);
+        } finally {
+            second.shutdown();
+        }
+    }
+
+    private String generateTargetsScript(final MockWebServer second, final String failurePolicy) throws IOException {
+        final String nodeScript = "node { \n" +
+                "writeFile(encoding: 'utf-8', file: 'marathon.json', text: \"\"\"%s\"\"\");\n" +
+                "def results = marathon(url: '%s', targets: [[url: '%s']], failurePolicy: '%s');\n" +
+                "echo \"RESULT ${results['%s'].status} ${results['%s'].status}\"\n" +
+                "}";
+        final String first = MarathonBuilderUtils.rmSlashFromUrl(TestUtils.getHttpAddresss(httpServer));
+        final String other = TestUtils.getHttpAddresss(second);
+        return String.format(nodeScript, TestUtils.loadFixture("idonly.json"), first, other, failurePolicy, first, other);
+    }
+
+    private String generateWaitScript() throws IOException {
+        final String nodeScript = "node { \n" +
+                "writeFile(encoding: 'utf-8', file: 'marathon.json', text: \"\"\"%s\"\"\");\n" +
+                "marathon(url: '%s', waitForDeployment: true, deploymentTimeout: 30);\n" +
+                "}";
+        return String.format(nodeScript, TestUtils.loadFixture("idonly.json"), TestUtils.getHttpAddresss(httpServer));
+    }
+
+    /**
+     * A stand-in for Marathon that starts deployment "dep-1" and reports its result on the event stream.
+     *
+     * @param result event type that finishes the deployment
+     * @return dispatcher
+     */
+    private static Dispatcher deploymentDispatcher(final String result) {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                if (request.getPath().startsWith("/v2/events")) {
+                    return new MockResponse().setHeader("Content-Type", "text/event-stream").setBody(
+                            "event: status_update_event\ndata: {\"taskStatus\":\"TASK_RUNNING\"}\n\n" +
+                                    "event: " + result + "\ndata: {\"eventType\":\"" + result + "\",\"id\":\"other\"}\n\n" +
+                                    "event: " + result + "\ndata: {\"eventType\":\"" + result + "\",\"id\":\"dep-1\"}\n\n");
+                }
+                if (request.getPath().startsWith("/v2/deployments")) {
+                    return new MockResponse().setHeader("Content-Type", "application/json").setBody("[{\"id\":\"dep-1\"}]");
+                }
+                return new MockResponse().setHeader("Content-Type", "application/json")
+                        .setBody("{\"version\": \"one\", \"deploymentId\": \"dep-1\"}");
+            }
+        };
+    }
+
     /**
      * Helper method to generate the groovy script for pipeline jobs.
      *
@@ -1,12 +1,14 @@
 package com.mesosphere.velocity.marathon;
 
 import net.sf.json.JSONObject;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
 import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestUtils {
 
@@ -32,6 +34,25 @@ public class TestUtils {
         httpServer.enqueue(new MockResponse().setResponseCode(statusCode));
     }
 
+    /**
+     * Answer every application update with 409 (Conflict), while no deployments are running.
+     *
+     * @param httpServer web server
+     * @param updates    counter of update requests
+     */
+    public static void setConflictDispatcher(final MockWebServer httpServer, final AtomicInteger updates) {
+        httpServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                if (request.getPath().startsWith("/v2/deployments")) {
+                    return new MockResponse().setHeader("Content-Type", "application/json").setBody("[]");
+                }
+                updates.incrementAndGet();
+                return new MockResponse().setResponseCode(409);
+            }
+        });
+    }
+
     /**
      * Take a request from httpServer and return the JSON object.
      *
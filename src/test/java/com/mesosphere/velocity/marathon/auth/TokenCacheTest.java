@@ -0,0 +1,150 @@
+package com.mesosphere.velocity.marathon.auth;
+
+import hudson.util.Secret;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.internal.util.reflection.Whitebox;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Secret.class})
+@PowerMockIgnore("javax.crypto.*")
+public class TokenCacheTest {
+    private static final String CREDENTIALS_ID = "token-cache-test";
+
+    @Mock
+    private StringCredentials credentials;
+
+    /**
+     * Create an unsigned JWT that expires at the given time.
+     *
+     * @param expiration expiration in seconds since the epoch
+     * @return JWT
+     */
+    static String jwt(final long expiration) {
+        final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        final String         header  = encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8));
+        final String         claims  = encoder.encodeToString(("{\"uid\":\"test\",\"exp\":" + expiration + "}").getBytes(StandardCharsets.UTF_8));
+        return header + "." + claims + ".signature";
+    }
+
+    private static long secondsFromNow(final long minutes) {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + TimeUnit.MINUTES.toSeconds(minutes);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(credentials.getId()).thenReturn(CREDENTIALS_ID);
+    }
+
+    @After
+    public void tearDown() {
+        TokenCache.invalidate(CREDENTIALS_ID);
+    }
+
+    private void setSecret(final String secretText) {
+        final Secret secret = PowerMockito.mock(Secret.class);
+        Whitebox.setInternalState(secret, "value", secretText);
+        when(secret.getPlainText()).thenReturn(secretText);
+        when(credentials.getSecret()).thenReturn(secret);
+    }
+
+    /**
+     * Test that the "exp" claim of a JWT is decoded, and that other tokens have no expiration.
+     */
+    @Test
+    public void testExpiration() {
+        assertEquals("Wrong expiration", TimeUnit.SECONDS.toMillis(1234L), TokenCache.getExpiration(jwt(1234L)));
+        assertEquals("Plain token should not expire", -1, TokenCache.getExpiration("my secret token"));
+        assertEquals("Invalid claims should not expire", -1, TokenCache.getExpiration("a.b.c"));
+        assertEquals("Null token should not expire", -1, TokenCache.getExpiration(null));
+    }
+
+    /**
+     * Test that the "jenkins_token" field or plain content is used as the stored token.
+     */
+    @Test
+    public void testStoredToken() throws Exception {
+        setSecret("{\"field1\":\"some value\", \"jenkins_token\":\"json token\"}");
+        assertEquals("json token", TokenCache.getToken(CREDENTIALS_ID, credentials));
+
+        setSecret("plain token");
+        assertEquals("plain token", TokenCache.getToken(CREDENTIALS_ID, credentials));
+
+        setSecret("{\"field1\":\"some value\"}");
+        assertEquals("", TokenCache.getToken(CREDENTIALS_ID, credentials));
+    }
+
+    /**
+     * Test that a fresh token is cached and that the cache follows changes to the credentials.
+     */
+    @Test
+    public void testFreshTokenIsCached() throws Exception {
+        final String token = jwt(secondsFromNow(60));
+        setSecret("{\"jenkins_token\":\"" + token + "\"}");
+        assertEquals(token, TokenCache.getToken(CREDENTIALS_ID, credentials));
+        assertEquals(token, TokenCache.getToken(CREDENTIALS_ID, credentials));
+
+        final String changedToken = jwt(secondsFromNow(90));
+        setSecret("{\"jenkins_token\":\"" + changedToken + "\"}");
+        assertEquals("Changed credentials were not picked up", changedToken, TokenCache.getToken(CREDENTIALS_ID, credentials));
+    }
+
+    /**
+     * Test that an expired token is still returned when the credentials cannot be used to request a new one, so
+     * that the request falls back to the 401 handling.
+     */
+    @Test
+    public void testExpiredTokenWithoutServiceAccount() throws Exception {
+        final String token = jwt(secondsFromNow(-5));
+        setSecret("{\"jenkins_token\":\"" + token + "\"}");
+        assertEquals(token, TokenCache.getToken(CREDENTIALS_ID, credentials));
+    }
+
+    /**
+     * Test that a refreshed token kept only in memory takes precedence over the token it replaced within the
+     * credentials.
+     */
+    @Test
+    public void testCachedTokenReplacesStoredToken() throws Exception {
+        final String storedToken    = jwt(secondsFromNow(60));
+        final String refreshedToken = jwt(secondsFromNow(90));
+        setSecret("{\"jenkins_token\":\"" + storedToken + "\"}");
+
+        TokenCache.put(CREDENTIALS_ID, refreshedToken, TokenCache.getIdentity(credentials), storedToken);
+        assertEquals("Cached token was not used", refreshedToken, TokenCache.getToken(CREDENTIALS_ID, credentials));
+        assertEquals("Cached token was not used", refreshedToken, TokenCache.getToken(CREDENTIALS_ID, credentials));
+    }
+
+    /**
+     * Test that tokens are encrypted in memory.
+     */
+    @Test
+    public void testTokenCipher() {
+        final String token  = "my secret token";
+        final byte[] sealed = TokenCipher.seal(token);
+
+        assertFalse("Token is stored in plain text",
+                new String(sealed, StandardCharsets.ISO_8859_1).contains(token));
+        assertFalse("Same token should not encrypt to the same bytes", Arrays.equals(sealed, TokenCipher.seal(token)));
+        assertEquals("Token was not decrypted", token, TokenCipher.open(sealed));
+    }
+}
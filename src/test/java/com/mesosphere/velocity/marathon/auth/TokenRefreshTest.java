@@ -0,0 +1,139 @@
+package com.mesosphere.velocity.marathon.auth;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.mesosphere.velocity.marathon.MarathonRecorder;
+import com.mesosphere.velocity.marathon.TestUtils;
+import com.mesosphere.velocity.marathon.interfaces.MarathonBuilder;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import hudson.ExtensionList;
+import hudson.util.Secret;
+import net.sf.json.JSONObject;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests token refreshes against a Marathon instance and DC/OS login endpoint served by the same web server.
+ */
+public class TokenRefreshTest {
+    private static final String GENERIC_RESPONSE = "{\"version\": \"one\", \"deploymentId\": \"someid-here\"}";
+    private static final String LOGIN_PATH       = "/acs/api/v1/auth/login";
+    private static final String NEW_TOKEN        = "refreshed-token";
+    private static final int    BUILDS           = 8;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private final AtomicInteger loginRequests = new AtomicInteger();
+    private       MockWebServer httpServer;
+
+    @Before
+    public void setUp() throws IOException {
+        httpServer = new MockWebServer();
+        httpServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) throws InterruptedException {
+                if (request.getPath().startsWith(LOGIN_PATH)) {
+                    loginRequests.incrementAndGet();
+                    // keep the refresh in flight while the other builds are rejected
+                    Thread.sleep(500L);
+                    return new MockResponse()
+                            .addHeader("Set-Cookie", DcosAuthImpl.DCOS_AUTH_COOKIE + "=" + NEW_TOKEN + "; Path=/");
+                }
+
+                if (("token=" + NEW_TOKEN).equals(request.getHeader("Authorization"))) {
+                    return new MockResponse().setHeader("Content-Type", "application/json").setBody(GENERIC_RESPONSE);
+                }
+                return new MockResponse().setResponseCode(401);
+            }
+        });
+        httpServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        httpServer.shutdown();
+        httpServer = null;
+    }
+
+    /**
+     * Test that concurrent updates which are all rejected with the same expired token result in a single
+     * login request, and that every update succeeds with the refreshed token.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testConcurrentRefreshSendsOneLogin() throws Exception {
+        final String credentialsId = "concurrent-refresh";
+        final String url           = TestUtils.getHttpAddresss(httpServer);
+        addServiceAccount(credentialsId, url, "expired token");
+
+        final MarathonRecorder config = new MarathonRecorder(url);
+        config.setCredentialsId(credentialsId);
+        final String payload = TestUtils.loadFixture("idonly.json");
+
+        final ExecutorService               executor = Executors.newFixedThreadPool(BUILDS);
+        final CountDownLatch                start    = new CountDownLatch(1);
+        final List<Future<MarathonBuilder>> updates  = new ArrayList<>(BUILDS);
+        for (int i = 0; i < BUILDS; i++) {
+            updates.add(executor.submit(new Callable<MarathonBuilder>() {
+                @Override
+                public MarathonBuilder call() throws Exception {
+                    start.await();
+                    return MarathonBuilder.getBuilder(config)
+                            .setJson(JSONObject.fromObject(payload))
+                            .build()
+                            .update();
+                }
+            }));
+        }
+
+        start.countDown();
+        try {
+            for (final Future<MarathonBuilder> update : updates) {
+                update.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals("Only one login request should be made", 1, loginRequests.get());
+        assertEquals("Refreshed token was not stored", NEW_TOKEN,
+                TokenCache.getStoredToken(MarathonBuilderUtils.getTokenCredentials(credentialsId)));
+    }
+
+    private void addServiceAccount(final String credentialsId, final String url, final String token) throws IOException {
+        final SystemCredentialsProvider.ProviderImpl system      = ExtensionList.lookup(CredentialsProvider.class).get(SystemCredentialsProvider.ProviderImpl.class);
+        final CredentialsStore                       systemStore = system.getStore(j.getInstance());
+        final String secretText = String.format(
+                "{\"uid\":\"testuser\",\"login_endpoint\":\"%s\",\"private_key\":\"%s\",\"scheme\":\"RS256\",\"jenkins_token\":\"%s\"}",
+                MarathonBuilderUtils.rmSlashFromUrl(url) + LOGIN_PATH, DcosAuthImplTest.RSAPrivateKeyForJSON, token);
+
+        systemStore.addCredentials(Domain.global(), new StringCredentialsImpl(CredentialsScope.GLOBAL,
+                credentialsId, "service account for token refresh test", Secret.fromString(secretText)));
+    }
+}
@@ -0,0 +1,66 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import com.mesosphere.velocity.marathon.TestUtils;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import hudson.model.Result;
+import okhttp3.mockwebserver.MockWebServer;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class DefinitionCacheTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private MockWebServer httpServer;
+
+    @Before
+    public void setUp() throws IOException {
+        httpServer = new MockWebServer();
+        httpServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        httpServer.shutdown();
+    }
+
+    /**
+     * Test that a repeated marathon step deploys the cached definition instead of parsing the file again.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testRepeatedStepUsesCache() throws Exception {
+        final String payload = "{\"id\": \"cached-step\", \"cmd\": \"sleep 60\"}";
+        final String script  = "node { \n" +
+                "writeFile(encoding: 'utf-8', file: 'marathon.json', text: '''" + payload + "''');\n" +
+                "marathon(url: '" + TestUtils.getHttpAddresss(httpServer) + "');\n" +
+                "}";
+        TestUtils.enqueueJsonResponse(httpServer, "{\"version\": \"one\", \"deploymentId\": \"first\"}");
+        TestUtils.enqueueJsonResponse(httpServer, "{\"version\": \"two\", \"deploymentId\": \"second\"}");
+
+        final WorkflowJob job = j.jenkins.createProject(WorkflowJob.class, "cached-step");
+        job.setDefinition(new CpsFlowDefinition(script, true));
+
+        j.assertBuildStatus(Result.SUCCESS, job.scheduleBuild2(0).get());
+        assertNotNull("Definition should be cached", DefinitionCache.get(MarathonBuilderUtils.digest(payload)));
+
+        final long hits = DefinitionCache.getHits();
+        j.assertBuildStatus(Result.SUCCESS, job.scheduleBuild2(0).get());
+        assertEquals("Cached definition should be reused", hits + 1, DefinitionCache.getHits());
+
+        assertEquals("Two requests should be made", 2, httpServer.getRequestCount());
+        assertEquals("cached-step", TestUtils.jsonFromRequest(httpServer).getString("id"));
+        assertEquals("cached-step", TestUtils.jsonFromRequest(httpServer).getString("id"));
+    }
+}
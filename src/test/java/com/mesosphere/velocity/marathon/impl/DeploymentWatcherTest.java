@@ -0,0 +1,54 @@
+package com.mesosphere.velocity.marathon.impl;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DeploymentWatcherTest {
+    private static String read(final String stream) throws IOException {
+        return DeploymentWatcher.readEvents(new ByteArrayInputStream(stream.getBytes(StandardCharsets.UTF_8)), "dep-1");
+    }
+
+    /**
+     * Test that only events for the awaited deployment finish it.
+     *
+     * @throws IOException when the stream cannot be read
+     */
+    @Test
+    public void testMatchingDeployment() throws IOException {
+        assertEquals(DeploymentWatcher.DEPLOYMENT_SUCCESS, read(
+                "event: deployment_success\ndata: {\"id\":\"other\"}\n\n" +
+                        "event: deployment_success\ndata: {\"id\":\"dep-1\"}\n\n"));
+        assertEquals(DeploymentWatcher.DEPLOYMENT_FAILED, read(
+                "event: deployment_failed\ndata: {\"plan\":{\"id\":\"dep-1\"}}\n\n"));
+    }
+
+    /**
+     * Test that the event type is taken from the event data when the stream does not name events.
+     *
+     * @throws IOException when the stream cannot be read
+     */
+    @Test
+    public void testUnnamedEvents() throws IOException {
+        assertEquals(DeploymentWatcher.DEPLOYMENT_SUCCESS, read(
+                "data: {\"eventType\":\"status_update_event\",\"id\":\"dep-1\"}\n\n" +
+                        "data: {\"eventType\":\"deployment_success\",\"id\":\"dep-1\"}\n\n"));
+    }
+
+    /**
+     * Test that unrelated or unreadable events are ignored and that the end of the stream is reported.
+     *
+     * @throws IOException when the stream cannot be read
+     */
+    @Test
+    public void testStreamEnds() throws IOException {
+        assertNull(read("event: status_update_event\ndata: {\"id\":\"dep-1\"}\n\n" +
+                "event: deployment_success\ndata: not json\n\n" +
+                "event: deployment_success\ndata: {\"id\":\"dep-1\"}\n"));
+    }
+}
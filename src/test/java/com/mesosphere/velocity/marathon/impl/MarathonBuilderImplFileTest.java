@@ -1,37 +1,37 @@
 package com.mesosphere.velocity.marathon.impl;
 
+import com.google.gson.JsonObject;
 import com.mesosphere.velocity.marathon.TestUtils;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileInvalidException;
 import com.mesosphere.velocity.marathon.exceptions.MarathonFileMissingException;
 import com.mesosphere.velocity.marathon.interfaces.AppConfig;
 import com.mesosphere.velocity.marathon.interfaces.MarathonBuilder;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
 import hudson.FilePath;
 import net.sf.json.JSONObject;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.powermock.api.mockito.PowerMockito;
-import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
 
 import static org.junit.Assert.*;
-import static org.mockito.Matchers.anyString;
-import static org.mockito.Mockito.when;
 
 /**
- * Tests based around the filesystem and require mocking of FilePath.class
+ * Tests based around the filesystem, using a temporary workspace
  */
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({FilePath.class})
 public class MarathonBuilderImplFileTest {
     @Rule
     public final ExpectedException exception = ExpectedException.none();
+    @Rule
+    public final TemporaryFolder   folder    = new TemporaryFolder();
     @Mock
     private AppConfig       appConfig;
     private MarathonBuilder builder;
@@ -62,61 +62,110 @@ public class MarathonBuilderImplFileTest {
     public void testReadNonexistingFile()
             throws IOException, InterruptedException, MarathonFileMissingException, MarathonFileInvalidException {
         final String   filename = "somefile";
-        final FilePath wsMock   = PowerMockito.mock(FilePath.class);
-        final FilePath fileMock = PowerMockito.mock(FilePath.class);
-        when(wsMock.child(anyString())).thenReturn(fileMock);
-        when(fileMock.exists()).thenReturn(false);
+        final FilePath ws       = new FilePath(folder.getRoot());
 
         // create builder
         builder = new MarathonBuilderImpl(appConfig);
 
         // setup FileMissing exception
         exception.expect(MarathonFileMissingException.class);
-        builder.setWorkspace(wsMock).read(filename);
+        builder.setWorkspace(ws).read(filename);
     }
 
     @Test
     public void testReadDirectoryFile() throws InterruptedException, MarathonFileMissingException, MarathonFileInvalidException, IOException {
         final String   filename = "somefile";
-        final FilePath wsMock   = PowerMockito.mock(FilePath.class);
-        final FilePath fileMock = PowerMockito.mock(FilePath.class);
-        when(wsMock.child(anyString())).thenReturn(fileMock);
-        when(fileMock.exists()).thenReturn(true);
-        when(fileMock.isDirectory()).thenReturn(true);
+        final FilePath ws       = new FilePath(folder.getRoot());
+        ws.child(filename).mkdirs();
+
+        // create builder
+        builder = new MarathonBuilderImpl(appConfig);
+
+        // setup FileInvalid exception
+        exception.expect(MarathonFileInvalidException.class);
+        builder.setWorkspace(ws).read(filename);
+    }
+
+    /**
+     * Test that a file that is not a JSON object is reported as an invalid definition.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testReadInvalidJson() throws Exception {
+        final String   filename = "somefile";
+        final FilePath ws       = new FilePath(folder.getRoot());
+        ws.child(filename).write("[\"not\", \"an\", \"object\"]", null);
 
         // create builder
         builder = new MarathonBuilderImpl(appConfig);
 
         // setup FileInvalid exception
         exception.expect(MarathonFileInvalidException.class);
-        builder.setWorkspace(wsMock).read(filename);
+        builder.setWorkspace(ws).read(filename);
     }
 
     @Test
     public void testReadPositive() throws Exception {
         final String     filename     = "somefile";
-        final FilePath   wsMock       = PowerMockito.mock(FilePath.class);
-        final FilePath   fileMock     = PowerMockito.mock(FilePath.class);
+        final FilePath   ws           = new FilePath(folder.getRoot());
         final JSONObject expectedJson = new JSONObject();
         final String     payload      = TestUtils.loadFixture("idonly.json");
 
-        when(wsMock.child(anyString())).thenReturn(fileMock);
-        when(fileMock.exists()).thenReturn(true);
-        when(fileMock.isDirectory()).thenReturn(false);
-
         // the magic...
-        when(fileMock.readToString()).thenReturn("{}");
+        ws.child(filename).write("{}", null);
 
         builder = new MarathonBuilderImpl(appConfig);
-        builder.setWorkspace(wsMock).read(filename);
+        builder.setWorkspace(ws).read(filename);
         assertEquals("Empty JSON Object was read in", expectedJson, builder.getJson());
 
         // now non-empty
-        when(fileMock.readToString()).thenReturn(payload);
+        ws.child(filename).write(payload, null);
         expectedJson.put("id", "myapp");
         builder.read(filename);
         assertEquals("JSON should have same id",
                 expectedJson.getString("id"), builder.getJson().getString("id"));
     }
 
+    /**
+     * Test that a parsed definition is cached by the digest of the file, and that builders get their own copy.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testReadCached() throws Exception {
+        final String   payload = "{\"id\": \"cached-app\", \"labels\": {\"a\": \"b\"}}";
+        final FilePath ws      = new FilePath(folder.newFolder("first"));
+        final FilePath other   = new FilePath(folder.newFolder("second"));
+        ws.child("marathon.json").write(payload, null);
+        other.child("marathon.json").write(payload, null);
+
+        builder = new MarathonBuilderImpl(appConfig).setWorkspace(ws).read(null);
+        final JsonObject cached = DefinitionCache.get(MarathonBuilderUtils.digest(payload));
+        assertNotNull("Definition should be cached", cached);
+
+        // changes to a copy do not leak into the cache
+        cached.getAsJsonObject("labels").addProperty("a", "changed");
+        final MarathonBuilder second = new MarathonBuilderImpl(appConfig).setWorkspace(other).read(null);
+        assertEquals("Cached definition should be used", "cached-app", second.getJson().getString("id"));
+        assertEquals("Cached definition should not change", "b",
+                second.getJson().getJSONObject("labels").getString("a"));
+    }
+
+    /**
+     * Test that the rendered file cannot replace a directory.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testToFileDirectory() throws Exception {
+        final FilePath ws = new FilePath(folder.getRoot());
+        ws.child("rendered").mkdirs();
+
+        builder = new MarathonBuilderImpl(appConfig).setWorkspace(ws).setJson(new JSONObject());
+
+        exception.expect(MarathonFileInvalidException.class);
+        builder.toFile("rendered");
+    }
+
 }
\ No newline at end of file
@@ -8,19 +8,37 @@ import com.mesosphere.velocity.marathon.fields.MarathonUri;
 import com.mesosphere.velocity.marathon.fields.MarathonVars;
 import com.mesosphere.velocity.marathon.interfaces.AppConfig;
 import com.mesosphere.velocity.marathon.interfaces.MarathonBuilder;
+import com.mesosphere.velocity.marathon.util.DeploymentLimiter;
+import com.mesosphere.velocity.marathon.util.MarathonBuilderUtils;
+import hudson.EnvVars;
+import hudson.FilePath;
 import net.sf.json.JSONObject;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
 public class MarathonBuilderImplTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private MockWebServer httpServer;
 
     @Before
@@ -199,6 +217,359 @@ public class MarathonBuilderImplTest {
         assertEquals("foo not set correctly", "bar", builder.getApp().getEnv().get("foo"));
     }
 
+    /**
+     * Test that labels and environment variables are added to every application within a group definition, and that
+     * the configured id becomes the group id.
+     */
+    @Test
+    public void testGroupDefinition() {
+        final JSONObject json = JSONObject.fromObject(
+                "{\"id\":\"/product\",\"apps\":[{\"id\":\"frontend\"}],\"groups\":[{\"id\":\"db\",\"apps\":[{\"id\":\"mysql\",\"labels\":{\"a\":\"b\"}}]}]}");
+        final MockConfig config = new MockConfig();
+        config.appId = "/other";
+        config.labels.add(new MarathonLabel("foo", "bar"));
+        config.env.add(new MarathonVars("FOO", "bar"));
+
+        final MarathonBuilder builder = new MarathonBuilderImpl(config).setJson(json).build();
+        assertTrue("Group definition was not detected", builder.isGroup());
+        assertNull("Group should not be read as an application", builder.getApp());
+
+        final JSONObject group    = builder.getJson();
+        final JSONObject frontend = group.getJSONArray("apps").getJSONObject(0);
+        final JSONObject mysql    = group.getJSONArray("groups").getJSONObject(0).getJSONArray("apps").getJSONObject(0);
+        assertEquals("Wrong group id", "/other", group.getString("id"));
+        assertEquals("Label not set on frontend", "bar", frontend.getJSONObject("labels").getString("foo"));
+        assertEquals("Env not set on frontend", "bar", frontend.getJSONObject("env").getString("FOO"));
+        assertEquals("Label not set on nested mysql", "bar", mysql.getJSONObject("labels").getString("foo"));
+        assertEquals("Existing label was lost", "b", mysql.getJSONObject("labels").getString("a"));
+    }
+
+    /**
+     * Test that a group definition is submitted with a single request to the Marathon groups API.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testGroupUpdate() throws Exception {
+        final JSONObject json   = JSONObject.fromObject("{\"id\":\"/product\",\"apps\":[{\"id\":\"frontend\"},{\"id\":\"backend\"}]}");
+        final MockConfig config = new MockConfig();
+        config.url = TestUtils.getHttpAddresss(httpServer);
+        config.forceUpdate = true;
+
+        TestUtils.enqueueJsonResponse(httpServer, "{\"version\":\"2017-01-01T00:00:00.000Z\",\"deploymentId\":\"group-dep\"}");
+        final MarathonBuilder builder = new MarathonBuilderImpl(config).setJson(json).build().update();
+
+        final RecordedRequest request = httpServer.takeRequest();
+        assertEquals("Wrong number of requests", 1, httpServer.getRequestCount());
+        assertEquals("Wrong method", "PUT", request.getMethod());
+        assertEquals("Wrong path", "/v2/groups/product?force=true", request.getPath());
+        assertEquals("Wrong number of apps", 2,
+                JSONObject.fromObject(request.getBody().readUtf8()).getJSONArray("apps").size());
+        assertEquals("Wrong deployment id", "group-dep", builder.getDeploymentId());
+    }
+
+    /**
+     * Test that the update is skipped when the running application carries the same content hash.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testSkipIfUnchanged() throws Exception {
+        final MockConfig config = new MockConfig();
+        config.url = TestUtils.getHttpAddresss(httpServer);
+        config.skipIfUnchanged = true;
+        config.labels.add(new MarathonLabel("foo", "bar"));
+
+        final MarathonBuilder builder = new MarathonBuilderImpl(config)
+                .setJson(JSONObject.fromObject(TestUtils.loadFixture("idonly.json")))
+                .build();
+        final String hash = builder.getApp().getLabels().get(MarathonBuilderUtils.CONTENT_HASH_LABEL);
+        assertNotNull("Content hash label was not set", hash);
+
+        TestUtils.enqueueJsonResponse(httpServer, "{\"app\": {\"id\": \"myapp\", \"labels\": {\"" +
+                MarathonBuilderUtils.CONTENT_HASH_LABEL + "\": \"" + hash + "\"}}}");
+        builder.update();
+
+        assertTrue("Application should be unchanged", builder.isUnchanged());
+        assertNull("No deployment should be started", builder.getDeploymentId());
+        assertEquals("Only the application should be fetched", 1, httpServer.getRequestCount());
+        assertEquals("Wrong method", "GET", httpServer.takeRequest().getMethod());
+    }
+
+    /**
+     * Test that rendering on the workspace applies the configuration, writes the rendered application to the
+     * rendered file and leaves the definition file alone.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testRender() throws Exception {
+        final FilePath   workspace = new FilePath(folder.getRoot());
+        final MockConfig config    = new MockConfig();
+        config.url = TestUtils.getHttpAddresss(httpServer);
+        config.docker = "nginx:${TAG}";
+        config.labels.add(new MarathonLabel("foo", "bar"));
+        workspace.child("marathon.json").write(TestUtils.loadFixture("idonly.json"), null);
+
+        final MarathonBuilder builder = new MarathonBuilderImpl(config)
+                .setEnvVars(new EnvVars("TAG", "1.11", "BUILD_NUMBER", "3"))
+                .setWorkspace(workspace)
+                .render(null, null);
+
+        assertEquals("Wrong id", "myapp", builder.getApp().getId());
+        assertEquals("Wrong image", "nginx:1.11", builder.getApp().getContainer().getDocker().getImage());
+        assertEquals("Wrong label", "bar", builder.getApp().getLabels().get("foo"));
+
+        final JSONObject rendered = JSONObject.fromObject(workspace.child("marathon-rendered-3.json").readToString());
+        assertEquals("Rendered file should hold the image", "nginx:1.11",
+                rendered.getJSONObject("container").getJSONObject("docker").getString("image"));
+        assertEquals("Definition should not change", JSONObject.fromObject(TestUtils.loadFixture("idonly.json")),
+                JSONObject.fromObject(workspace.child("marathon.json").readToString()));
+    }
+
+    /**
+     * Test that with definition expansion enabled, Jenkins variables are expanded in all string values of the
+     * definition, while keys, numbers and escaped dollar signs are left alone.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testRenderExpandDefinition() throws Exception {
+        final FilePath   workspace = new FilePath(folder.getRoot());
+        final MockConfig config    = new MockConfig();
+        config.url = TestUtils.getHttpAddresss(httpServer);
+        config.expandDefinition = true;
+        workspace.child("marathon.json").write("{\"id\": \"app-${ENV}\", \"cmd\": \"echo $$HOME $BUILD_NUMBER\", "
+                + "\"instances\": 2, \"env\": {\"$ENV\": \"${ENV}\"}, \"args\": [\"--env=$ENV\"]}", null);
+
+        final MarathonBuilder builder = new MarathonBuilderImpl(config)
+                .setEnvVars(new EnvVars("ENV", "prod", "BUILD_NUMBER", "5"))
+                .setWorkspace(workspace)
+                .render(null, null);
+
+        assertEquals("Wrong id", "app-prod", builder.getApp().getId());
+        assertEquals("Wrong cmd", "echo $HOME 5", builder.getApp().getCmd());
+        assertEquals("Wrong instances", Integer.valueOf(2), builder.getApp().getInstances());
+        assertEquals("Keys should not be expanded", "prod", builder.getApp().getEnv().get("$ENV"));
+        assertEquals("Wrong args", "--env=prod", builder.getApp().getArgs().iterator().next());
+
+        config.expandDefinition = false;
+        final MarathonBuilder literal = new MarathonBuilderImpl(config)
+                .setEnvVars(new EnvVars("ENV", "prod", "BUILD_NUMBER", "6"))
+                .setWorkspace(workspace)
+                .render(null, null);
+        assertEquals("Values should not be expanded by default", "app-${ENV}", literal.getApp().getId());
+    }
+
+    /**
+     * Test that an older build that has not sent its update yet is superseded by a newer build of the same job,
+     * and that the newer build still deploys.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testCoalesceSupersedesOlderBuild() throws Exception {
+        final MockConfig config = new MockConfig();
+        config.url = TestUtils.getHttpAddresss(httpServer);
+        config.coalesce = true;
+
+        final MarathonBuilder older = new MarathonBuilderImpl(config)
+                .setEnvVars(new EnvVars("JOB_NAME", "coalesce-test", "BUILD_NUMBER", "7"))
+                .setJson(JSONObject.fromObject(TestUtils.loadFixture("idonly.json")))
+                .build();
+        final MarathonBuilder newer = new MarathonBuilderImpl(config)
+                .setEnvVars(new EnvVars("JOB_NAME", "coalesce-test", "BUILD_NUMBER", "8"))
+                .setJson(JSONObject.fromObject(TestUtils.loadFixture("idonly.json")))
+                .build();
+
+        older.update();
+        assertEquals("Older build should be superseded", 8, older.getSupersededBy());
+        assertNull("No deployment should be started", older.getDeploymentId());
+        assertEquals("No request should be made", 0, httpServer.getRequestCount());
+
+        TestUtils.enqueueJsonResponse(httpServer, "{\"version\": \"one\", \"deploymentId\": \"dep\"}");
+        newer.update();
+        assertEquals("Newer build should not be superseded", 0, newer.getSupersededBy());
+        assertEquals("Newer build should deploy", "dep", newer.getDeploymentId());
+        assertEquals("Wrong method", "PUT", httpServer.takeRequest().getMethod());
+    }
+
+    /**
+     * Test that an older build queued for a full update slot is superseded by a newer build that registers while it
+     * waits, and does not send its update once it gets the slot.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testCoalesceSupersedesQueuedBuild() throws Exception {
+        final MockConfig config = new MockConfig();
+        config.url = TestUtils.getHttpAddresss(httpServer);
+        config.coalesce = true;
+
+        final MarathonBuilder older = new MarathonBuilderImpl(config)
+                .setEnvVars(new EnvVars("JOB_NAME", "coalesce-queued", "BUILD_NUMBER", "7"))
+                .setJson(JSONObject.fromObject(TestUtils.loadFixture("idonly.json")))
+                .build();
+
+        // other updates hold every slot of the endpoint
+        final DeploymentLimiter            limiter  = DeploymentLimiter.forUrl(config.url);
+        final List<DeploymentLimiter.Slot> slots    = new ArrayList<>();
+        final ExecutorService              executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < limiter.getLimit(); i++) slots.add(limiter.acquire(null));
+            final Future<MarathonBuilder> update = executor.submit(older::update);
+            while (limiter.getQueueLength() == 0) Thread.sleep(10);
+
+            final MarathonBuilder newer = new MarathonBuilderImpl(config)
+                    .setEnvVars(new EnvVars("JOB_NAME", "coalesce-queued", "BUILD_NUMBER", "8"))
+                    .setJson(JSONObject.fromObject(TestUtils.loadFixture("idonly.json")))
+                    .build();
+            for (final DeploymentLimiter.Slot slot : slots) slot.close();
+            slots.clear();
+
+            update.get(5, TimeUnit.SECONDS);
+            assertEquals("Queued build should be superseded", 8, older.getSupersededBy());
+            assertNull("No deployment should be started", older.getDeploymentId());
+            assertEquals("No request should be made", 0, httpServer.getRequestCount());
+
+            TestUtils.enqueueJsonResponse(httpServer, "{\"version\": \"one\", \"deploymentId\": \"dep\"}");
+            newer.update();
+            assertEquals("Newer build should deploy", "dep", newer.getDeploymentId());
+        } finally {
+            for (final DeploymentLimiter.Slot slot : slots) slot.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that a changed definition, or a stable definition with labels in a different order, is hashed as
+     * expected and that a changed application is updated.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testSkipIfUnchangedUpdatesChangedApp() throws Exception {
+        final MockConfig config = new MockConfig();
+        config.url = TestUtils.getHttpAddresss(httpServer);
+        config.skipIfUnchanged = true;
+
+        final String first = new MarathonBuilderImpl(config)
+                .setJson(JSONObject.fromObject("{\"id\": \"myapp\", \"labels\": {\"a\": \"1\", \"b\": \"2\"}}"))
+                .build().getApp().getLabels().get(MarathonBuilderUtils.CONTENT_HASH_LABEL);
+        final String reordered = new MarathonBuilderImpl(config)
+                .setJson(JSONObject.fromObject("{\"labels\": {\"b\": \"2\", \"a\": \"1\"}, \"id\": \"myapp\"}"))
+                .build().getApp().getLabels().get(MarathonBuilderUtils.CONTENT_HASH_LABEL);
+        assertEquals("Field order should not change the hash", first, reordered);
+
+        final MarathonBuilder builder = new MarathonBuilderImpl(config)
+                .setJson(JSONObject.fromObject("{\"id\": \"myapp\", \"labels\": {\"a\": \"changed\"}}"))
+                .build();
+        TestUtils.enqueueJsonResponse(httpServer, "{\"app\": {\"id\": \"myapp\", \"labels\": {\"" +
+                MarathonBuilderUtils.CONTENT_HASH_LABEL + "\": \"" + first + "\"}}}");
+        TestUtils.enqueueJsonResponse(httpServer, "{\"version\": \"one\", \"deploymentId\": \"dep-1\"}");
+        builder.update();
+
+        assertFalse("Application should be changed", builder.isUnchanged());
+        assertEquals("Wrong deployment id", "dep-1", builder.getDeploymentId());
+        assertEquals("Application should be fetched and updated", 2, httpServer.getRequestCount());
+    }
+
+    /**
+     * Test that a 409 response waits for the deployment that locks the application and then retries right away.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testConflictWaitsForBlockingDeployment() throws Exception {
+        final AtomicInteger updates     = new AtomicInteger();
+        final AtomicInteger deployments = new AtomicInteger();
+        httpServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                if (request.getPath().startsWith("/v2/deployments")) {
+                    // the blocking deployment finishes after it was looked up
+                    return new MockResponse().setHeader("Content-Type", "application/json").setBody(deployments.getAndIncrement() == 0
+                            ? "[{\"id\": \"blocker\", \"affectedApps\": [\"/other\", \"/myapp\"]}, {\"id\": \"unrelated\", \"affectedApps\": [\"/myapp2\"]}]"
+                            : "[]");
+                }
+                if (request.getPath().startsWith("/v2/events")) {
+                    return new MockResponse().setHeader("Content-Type", "text/event-stream").setBody("");
+                }
+                if (updates.getAndIncrement() == 0) return new MockResponse().setResponseCode(409);
+                return new MockResponse().setHeader("Content-Type", "application/json")
+                        .setBody("{\"version\": \"one\", \"deploymentId\": \"dep-1\"}");
+            }
+        });
+
+        final MockConfig config = new MockConfig();
+        config.url = TestUtils.getHttpAddresss(httpServer);
+        final MarathonBuilder builder = new MarathonBuilderImpl(config)
+                .setJson(JSONObject.fromObject(TestUtils.loadFixture("idonly.json")))
+                .build()
+                .update();
+
+        assertEquals("Update should be retried once", 2, updates.get());
+        assertTrue("Running deployments should be looked up", deployments.get() >= 2);
+        assertEquals("Wrong deployment id", "dep-1", builder.getDeploymentId());
+    }
+
+    /**
+     * Test that concurrent updates to the same Marathon instance send no more than the limit of requests at once,
+     * and that the queued updates are all sent eventually.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testUpdateLimit() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak    = new AtomicInteger();
+        httpServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) throws InterruptedException {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(100);
+                running.decrementAndGet();
+                return new MockResponse().setHeader("Content-Type", "application/json")
+                        .setBody("{\"version\": \"one\", \"deploymentId\": \"dep\"}");
+            }
+        });
+
+        final MockConfig config = new MockConfig();
+        config.url = TestUtils.getHttpAddresss(httpServer);
+        final int             limit    = DeploymentLimiter.forUrl(config.url).getLimit();
+        final int             builds   = limit + 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(builds);
+        try {
+            final List<Future<MarathonBuilder>> updates = new ArrayList<>();
+            for (int i = 0; i < builds; i++) {
+                final MarathonBuilder builder = new MarathonBuilderImpl(config)
+                        .setJson(JSONObject.fromObject("{\"id\": \"app-" + i + "\"}"))
+                        .build();
+                updates.add(executor.submit(builder::update));
+            }
+
+            for (final Future<MarathonBuilder> update : updates) {
+                assertEquals("Every update should be sent", "dep", update.get(30, TimeUnit.SECONDS).getDeploymentId());
+            }
+            assertEquals("Wrong number of requests", builds, httpServer.getRequestCount());
+            assertTrue("Limit of " + limit + " exceeded: " + peak.get(), peak.get() <= limit);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that the deployments locking an application are looked up by application id.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testGetBlockingDeployments() throws Exception {
+        TestUtils.enqueueJsonResponse(httpServer, "[{\"id\": \"a\", \"affectedApps\": [\"/group/app\"]}, " +
+                "{\"id\": \"b\", \"affectedApps\": [\"/group2/app\"]}, {\"id\": \"c\", \"affectedApps\": [\"/group\"]}]");
+        assertEquals("Wrong blocking deployments", Arrays.asList("a", "c"),
+                new DeploymentWatcher(TestUtils.getHttpAddresss(httpServer), null).getDeployments("group"));
+    }
 
     static class MockConfig implements AppConfig {
         String              url;
@@ -211,6 +582,9 @@ public class MarathonBuilderImplTest {
         List<MarathonUri>   uris;
         List<MarathonLabel> labels;
         List<MarathonVars>  env;
+        boolean             skipIfUnchanged;
+        boolean             coalesce;
+        boolean             expandDefinition;
 
         MockConfig() {
             uris = new ArrayList<>();
@@ -267,5 +641,20 @@ public class MarathonBuilderImplTest {
         public List<MarathonVars> getEnv() {
             return env;
         }
+
+        @Override
+        public boolean getSkipIfUnchanged() {
+            return skipIfUnchanged;
+        }
+
+        @Override
+        public boolean getCoalesce() {
+            return coalesce;
+        }
+
+        @Override
+        public boolean getExpandDefinition() {
+            return expandDefinition;
+        }
     }
 }
@@ -0,0 +1,52 @@
+package com.mesosphere.velocity.marathon.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AppLockTest {
+    /**
+     * Test that a second deployment of the same application waits for the first one and reports its wait time,
+     * while a deployment of another application does not wait. Locks are dropped once released.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testSameApplicationWaits() throws Exception {
+        final ByteArrayOutputStream output   = new ByteArrayOutputStream();
+        final PrintStream           logger   = new PrintStream(output, true);
+        final CountDownLatch        acquired = new CountDownLatch(1);
+        final ExecutorService       executor = Executors.newSingleThreadExecutor();
+        try {
+            final AppLock.Lease first = AppLock.acquire("http://marathon:8080|/myapp", "/myapp", logger);
+            final Future<?> second = executor.submit(() -> {
+                try (AppLock.Lease ignored = AppLock.acquire("http://marathon:8080|/myapp", "/myapp", logger)) {
+                    acquired.countDown();
+                }
+                return null;
+            });
+
+            // other applications are not blocked
+            AppLock.acquire("http://marathon:8080|/otherapp", "/otherapp", logger).close();
+            assertFalse("Second deployment should wait", acquired.await(100, TimeUnit.MILLISECONDS));
+
+            first.close();
+            second.get(5, TimeUnit.SECONDS);
+            assertTrue("Wait time should be logged", output.toString().contains("ms for the deployment lock on '/myapp'"));
+            assertFalse("Other application should not wait", output.toString().contains("'/otherapp'"));
+            assertEquals("Released locks should be dropped", 0, AppLock.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
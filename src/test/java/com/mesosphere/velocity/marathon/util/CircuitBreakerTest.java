@@ -0,0 +1,64 @@
+package com.mesosphere.velocity.marathon.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    /**
+     * Test that the breaker opens after the configured number of consecutive failures and fails fast while open.
+     */
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker("http://marathon:8080", 3, 60000);
+
+        for (int i = 0; i < 2; i++) {
+            assertTrue("Closed breaker should permit requests", breaker.tryAcquire());
+            breaker.onFailure("503 Service Unavailable");
+        }
+        assertEquals("Breaker should still be closed", CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // a success in between resets the count
+        assertTrue("Closed breaker should permit requests", breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals("Success should reset failures", 0, breaker.getConsecutiveFailures());
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Closed breaker should permit requests", breaker.tryAcquire());
+            breaker.onFailure("503 Service Unavailable");
+        }
+        assertEquals("Breaker should be open", CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse("Open breaker should fail fast", breaker.tryAcquire());
+        assertTrue("Message should name the endpoint", breaker.getOpenMessage("Marathon endpoint").contains("http://marathon:8080"));
+    }
+
+    /**
+     * Test that a single probe is let through once the open timeout passed, and that its outcome closes or
+     * re-opens the breaker.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testHalfOpenProbe() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker("http://marathon:8080", 1, 10);
+        breaker.tryAcquire();
+        breaker.onFailure("Connection refused");
+        assertEquals("Breaker should be open", CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(20);
+        assertTrue("Probe should be permitted after the timeout", breaker.tryAcquire());
+        assertEquals("Breaker should be half-open", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse("Only a single probe should be permitted", breaker.tryAcquire());
+
+        breaker.onFailure("Connection refused");
+        assertEquals("Failed probe should re-open the breaker", CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(20);
+        assertTrue("Probe should be permitted after the timeout", breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals("Successful probe should close the breaker", CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue("Closed breaker should permit requests", breaker.tryAcquire());
+    }
+}
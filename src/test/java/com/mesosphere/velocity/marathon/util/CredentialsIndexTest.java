@@ -0,0 +1,131 @@
+package com.mesosphere.velocity.marathon.util;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import hudson.ExtensionList;
+import hudson.util.Secret;
+import mesosphere.marathon.client.Marathon;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class CredentialsIndexTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private CredentialsStore systemStore;
+
+    @Before
+    public void setUp() {
+        final SystemCredentialsProvider.ProviderImpl system = ExtensionList.lookup(CredentialsProvider.class).get(SystemCredentialsProvider.ProviderImpl.class);
+        systemStore = system.getStore(j.getInstance());
+    }
+
+    private static StringCredentials token(final String id, final String secret) {
+        return new StringCredentialsImpl(CredentialsScope.GLOBAL, id, "index test", Secret.fromString(secret));
+    }
+
+    /**
+     * Test that credentials are found by id and type, and that credentials added later are found.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testLookup() throws Exception {
+        systemStore.addCredentials(Domain.global(), token("first", "first token"));
+        assertEquals("first token", CredentialsIndex.get("first", StringCredentials.class).getSecret().getPlainText());
+        assertNull("Wrong type should not match", CredentialsIndex.get("first", UsernamePasswordCredentials.class));
+        assertNull("Unknown id should not match", CredentialsIndex.get("unknown", StringCredentials.class));
+
+        systemStore.addCredentials(Domain.global(), token("second", "second token"));
+        assertEquals("second token", CredentialsIndex.get("second", StringCredentials.class).getSecret().getPlainText());
+    }
+
+    /**
+     * Test that a lookup that misses rebuilds the index once, and that the miss is remembered until the index is
+     * invalidated.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testMissIsCached() throws Exception {
+        assertNull("Unknown id should not match", CredentialsIndex.get("silent", StringCredentials.class));
+
+        // added without saving, like a provider that does not report changes
+        SystemCredentialsProvider.getInstance().getCredentials().add(token("silent", "silent token"));
+        assertNull("Miss should be remembered", CredentialsIndex.get("silent", StringCredentials.class));
+
+        CredentialsIndex.invalidate();
+        assertEquals("silent token", CredentialsIndex.get("silent", StringCredentials.class).getSecret().getPlainText());
+    }
+
+    /**
+     * Test that changes made through the credentials store are picked up.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testStoreChangesInvalidateIndex() throws Exception {
+        final StringCredentials original = token("changing", "original");
+        systemStore.addCredentials(Domain.global(), original);
+        assertEquals("original", CredentialsIndex.get("changing", StringCredentials.class).getSecret().getPlainText());
+
+        systemStore.updateCredentials(Domain.global(), original, token("changing", "changed"));
+        assertEquals("Changed credentials were not picked up", "changed",
+                CredentialsIndex.get("changing", StringCredentials.class).getSecret().getPlainText());
+    }
+
+    /**
+     * Test that saving changed credentials drops the clients cached for them, and keeps those of unchanged ones.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testStoreChangesInvalidateClients() throws Exception {
+        final StringCredentials changing = token("changing", "original");
+        systemStore.addCredentials(Domain.global(), changing);
+        systemStore.addCredentials(Domain.global(), token("unchanged", "original"));
+        CredentialsIndex.get("changing", StringCredentials.class);
+
+        final MarathonClientRegistry.ClientFactory factory = () -> mock(Marathon.class);
+        final Marathon changed   = MarathonClientRegistry.getClient("http://marathon", "changing", MarathonClientRegistry.AuthType.TOKEN, null, factory);
+        final Marathon unchanged = MarathonClientRegistry.getClient("http://marathon", "unchanged", MarathonClientRegistry.AuthType.TOKEN, null, factory);
+
+        systemStore.updateCredentials(Domain.global(), changing, token("changing", "changed"));
+        assertNotSame("Client of changed credentials should be dropped", changed,
+                MarathonClientRegistry.getClient("http://marathon", "changing", MarathonClientRegistry.AuthType.TOKEN, null, factory));
+        assertSame("Client of unchanged credentials should be kept", unchanged,
+                MarathonClientRegistry.getClient("http://marathon", "unchanged", MarathonClientRegistry.AuthType.TOKEN, null, factory));
+        MarathonClientRegistry.clear();
+    }
+
+    /**
+     * Test that updating system credentials through the index stores them and updates the index.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testUpdateSystemCredentials() throws Exception {
+        systemStore.addCredentials(Domain.global(), token("updated", "old token"));
+
+        assertTrue("Credentials were not updated", CredentialsIndex.updateSystemCredentials("updated", token("updated", "new token")));
+        assertEquals("Index was not updated", "new token",
+                CredentialsIndex.get("updated", StringCredentials.class).getSecret().getPlainText());
+        assertEquals("Store was not updated", "new token",
+                ((StringCredentials) systemStore.getCredentials(Domain.global()).get(0)).getSecret().getPlainText());
+    }
+}
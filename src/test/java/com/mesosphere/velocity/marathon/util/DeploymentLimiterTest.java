@@ -0,0 +1,57 @@
+package com.mesosphere.velocity.marathon.util;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class DeploymentLimiterTest {
+    private static final PrintStream LOGGER = new PrintStream(new NullOutputStream());
+
+    /**
+     * Test that per-endpoint limits are keyed by endpoint and that invalid pairs are ignored.
+     */
+    @Test
+    public void testParseLimits() {
+        final Map<String, Integer> limits = DeploymentLimiter.parseLimits(
+                "https://marathon.example.com/service/marathon=2, http://10.0.0.1:8080=20, bogus, http://x=y");
+        assertEquals("Wrong limit", Integer.valueOf(2), limits.get("https://marathon.example.com:-1"));
+        assertEquals("Wrong limit", Integer.valueOf(20), limits.get("http://10.0.0.1:8080"));
+        assertNull("Invalid limit should be ignored", limits.get("http://x:-1"));
+        assertEquals("Wrong number of limits", 2, limits.size());
+    }
+
+    /**
+     * Test that a slot is given back when it is closed, so that it is held for a single request only.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testSlot() throws Exception {
+        final DeploymentLimiter limiter  = new DeploymentLimiter("http://marathon:8080", 1);
+        final ExecutorService   executor = Executors.newSingleThreadExecutor();
+        try {
+            final DeploymentLimiter.Slot slot    = limiter.acquire(LOGGER);
+            final Future<?>              waiting = executor.submit(() -> {
+                limiter.acquire(null).close();
+                return null;
+            });
+
+            Thread.sleep(50);
+            assertFalse("Second request should wait for the slot", waiting.isDone());
+            slot.close();
+            waiting.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
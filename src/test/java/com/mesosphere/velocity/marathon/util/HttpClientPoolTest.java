@@ -0,0 +1,70 @@
+package com.mesosphere.velocity.marathon.util;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class HttpClientPoolTest {
+    @After
+    public void tearDown() {
+        HttpClientPool.shutdown();
+    }
+
+    /**
+     * Test that URLs on the same endpoint share a client and other endpoints get their own.
+     */
+    @Test
+    public void testClientPerEndpoint() {
+        final CloseableHttpClient login  = HttpClientPool.getClient("https://leader.mesos/acs/api/v1/auth/login");
+        final CloseableHttpClient other  = HttpClientPool.getClient("https://leader.mesos/some/other/path");
+        final CloseableHttpClient port   = HttpClientPool.getClient("https://leader.mesos:8443/acs/api/v1/auth/login");
+        final CloseableHttpClient scheme = HttpClientPool.getClient("http://leader.mesos/acs/api/v1/auth/login");
+
+        assertSame("Client was not shared for the same endpoint", login, other);
+        assertNotSame(login, port);
+        assertNotSame(login, scheme);
+        assertEquals("Three clients should be pooled", 3, HttpClientPool.size());
+    }
+
+    /**
+     * Test that streams get their own client per endpoint, separate from the pooled request clients.
+     */
+    @Test
+    public void testStreamingClientPerEndpoint() {
+        final CloseableHttpClient client    = HttpClientPool.getClient("https://marathon.mesos/v2/apps");
+        final CloseableHttpClient streaming = HttpClientPool.getStreamingClient("https://marathon.mesos/v2/events");
+
+        assertNotSame("Streams should not use the request pool", client, streaming);
+        assertSame("Streaming client was not shared for the same endpoint", streaming,
+                HttpClientPool.getStreamingClient("https://marathon.mesos/v2/deployments"));
+        assertEquals("One request client should be pooled", 1, HttpClientPool.size());
+        assertEquals("One streaming client should be pooled", 1, HttpClientPool.streamingSize());
+    }
+
+    /**
+     * Test that every context gets its own cookie store.
+     */
+    @Test
+    public void testContextsDoNotShareCookies() {
+        assertNotSame("Cookie store is shared",
+                HttpClientPool.newContext().getCookieStore(),
+                HttpClientPool.newContext().getCookieStore());
+    }
+
+    /**
+     * Test that shutting down closes and removes all clients.
+     */
+    @Test
+    public void testShutdown() {
+        final CloseableHttpClient client = HttpClientPool.getClient("https://leader.mesos/acs/api/v1/auth/login");
+        HttpClientPool.shutdown();
+
+        assertEquals("Clients were not removed", 0, HttpClientPool.size());
+        assertEquals("Streaming clients were not removed", 0, HttpClientPool.streamingSize());
+        assertNotSame("Closed client was returned", client, HttpClientPool.getClient("https://leader.mesos/acs/api/v1/auth/login"));
+    }
+}
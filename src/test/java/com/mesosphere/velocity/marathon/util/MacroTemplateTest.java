@@ -0,0 +1,43 @@
+package com.mesosphere.velocity.marathon.util;
+
+import hudson.EnvVars;
+import hudson.Util;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MacroTemplateTest {
+    /**
+     * Test that expansion matches Util.replaceMacro, including escapes, unknown variables and malformed references.
+     */
+    @Test
+    public void testExpandLikeReplaceMacro() {
+        final EnvVars envVars = new EnvVars("BUILD_NUMBER", "42", "TAG", "v1.2", "a.b", "dotted", "NESTED", "$TAG");
+        final String[] templates = {
+                "", "plain", "$", "$$", "$$TAG", "$$$TAG", "end$", "$TAG", "${TAG}", "image:$TAG-b$BUILD_NUMBER",
+                "${a.b}", "$a.b", "$UNKNOWN", "${UNKNOWN}", "${}", "${TAG", "$-x", "$NESTED", "a$TAG$TAG${TAG}z"
+        };
+
+        for (final String template : templates) {
+            assertEquals("Wrong expansion of '" + template + "'",
+                    Util.replaceMacro(template, envVars), MacroTemplate.expand(template, envVars));
+        }
+        assertNull("Null should stay null", MacroTemplate.expand(null, envVars));
+    }
+
+    /**
+     * Test that templates are compiled once and that literals are recognized.
+     */
+    @Test
+    public void testCache() {
+        final MacroTemplate template = MacroTemplate.of("docker/image:$TAG");
+        assertSame("Template should be cached", template, MacroTemplate.of("docker/image:$TAG"));
+        assertTrue("Template should reference variables", template.hasVariables());
+        assertFalse("Literal should not reference variables", MacroTemplate.of("docker/image:latest").hasVariables());
+        assertEquals("Unknown variables should be kept", "docker/image:$TAG", template.expand(null));
+    }
+}
@@ -0,0 +1,81 @@
+package com.mesosphere.velocity.marathon.util;
+
+import mesosphere.marathon.client.Marathon;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+public class MarathonClientRegistryTest {
+    private static final String URL = "http://marathon.example.com";
+
+    private final MarathonClientRegistry.ClientFactory factory = new MarathonClientRegistry.ClientFactory() {
+        @Override
+        public Marathon create() {
+            return mock(Marathon.class);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        MarathonClientRegistry.clear();
+    }
+
+    /**
+     * Test that the same endpoint, credentials and authentication type resolve to the same client.
+     */
+    @Test
+    public void testClientIsReused() {
+        final Marathon first  = MarathonClientRegistry.getClient(URL, "creds", MarathonClientRegistry.AuthType.TOKEN, "abc", factory);
+        final Marathon second = MarathonClientRegistry.getClient(URL, "creds", MarathonClientRegistry.AuthType.TOKEN, "abc", factory);
+
+        assertSame("Client was not reused", first, second);
+        assertEquals("Only one client should be registered", 1, MarathonClientRegistry.size());
+    }
+
+    /**
+     * Test that different endpoints, credentials or authentication types get their own clients.
+     */
+    @Test
+    public void testClientsAreKeyed() {
+        final Marathon token = MarathonClientRegistry.getClient(URL, "creds", MarathonClientRegistry.AuthType.TOKEN, "abc", factory);
+        final Marathon basic = MarathonClientRegistry.getClient(URL, "creds", MarathonClientRegistry.AuthType.BASIC, "abc", factory);
+        final Marathon other = MarathonClientRegistry.getClient(URL + "/other", "creds", MarathonClientRegistry.AuthType.TOKEN, "abc", factory);
+        final Marathon none  = MarathonClientRegistry.getClient(URL, null, MarathonClientRegistry.AuthType.NONE, null, factory);
+
+        assertNotSame(token, basic);
+        assertNotSame(token, other);
+        assertNotSame(token, none);
+        assertEquals("Four clients should be registered", 4, MarathonClientRegistry.size());
+    }
+
+    /**
+     * Test that a change in credential material replaces the registered client.
+     */
+    @Test
+    public void testChangedCredentialsReplaceClient() {
+        final Marathon first  = MarathonClientRegistry.getClient(URL, "creds", MarathonClientRegistry.AuthType.TOKEN, "abc", factory);
+        final Marathon second = MarathonClientRegistry.getClient(URL, "creds", MarathonClientRegistry.AuthType.TOKEN, "def", factory);
+
+        assertNotSame("Client was not replaced", first, second);
+        assertEquals("Old client should have been replaced", 1, MarathonClientRegistry.size());
+    }
+
+    /**
+     * Test that idle clients are evicted and explicit invalidation removes a credential's clients.
+     */
+    @Test
+    public void testEviction() {
+        MarathonClientRegistry.getClient(URL, "creds", MarathonClientRegistry.AuthType.TOKEN, "abc", factory);
+        MarathonClientRegistry.getClient(URL, "other", MarathonClientRegistry.AuthType.TOKEN, "abc", factory);
+
+        MarathonClientRegistry.invalidate("other");
+        assertEquals("Invalidated client is still registered", 1, MarathonClientRegistry.size());
+
+        MarathonClientRegistry.evictIdle(System.currentTimeMillis() + MarathonClientRegistry.IDLE_TIMEOUT + 1);
+        assertEquals("Idle client was not evicted", 0, MarathonClientRegistry.size());
+    }
+}
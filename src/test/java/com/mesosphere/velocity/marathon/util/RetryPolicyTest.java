@@ -0,0 +1,144 @@
+package com.mesosphere.velocity.marathon.util;
+
+import com.mesosphere.velocity.marathon.exceptions.UpdateInterruptedException;
+import mesosphere.marathon.client.MarathonException;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest {
+    private static final PrintStream LOGGER = new PrintStream(new NullOutputStream());
+
+    /**
+     * Test that status codes and status classes are both accepted as retryable statuses, and that interrupted
+     * updates are never retried.
+     */
+    @Test
+    public void testRetryableStatuses() {
+        final RetryPolicy policy = new RetryPolicy(3, 0, 0, 0, "409, 5xx, bogus");
+        assertTrue("409 should be retryable", policy.isRetryable(new MarathonException(409, "Conflict")));
+        assertTrue("503 should be retryable", policy.isRetryable(new MarathonException(503, "Unavailable")));
+        assertFalse("404 should not be retryable", policy.isRetryable(new MarathonException(404, "Not Found")));
+        assertFalse("Interrupted updates should not be retryable",
+                policy.isRetryable(new UpdateInterruptedException("Interrupted")));
+    }
+
+    /**
+     * Test that delays are jittered between zero and the exponentially growing ceiling, capped at the maximum.
+     */
+    @Test
+    public void testDelay() {
+        final RetryPolicy policy = new RetryPolicy(10, 100, 1000, 0, "409");
+        for (int i = 0; i < 100; i++) {
+            final long first = policy.delay(1);
+            final long third = policy.delay(3);
+            final long tenth = policy.delay(10);
+            assertTrue("First delay out of bounds: " + first, first >= 0 && first <= 100);
+            assertTrue("Third delay out of bounds: " + third, third >= 0 && third <= 400);
+            assertTrue("Tenth delay out of bounds: " + tenth, tenth >= 0 && tenth <= 1000);
+        }
+    }
+
+    /**
+     * Test that a retryable failure is retried until it succeeds, and that other failures are not retried.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testExecute() throws Exception {
+        final RetryPolicy   policy   = new RetryPolicy(3, 1, 1, 60000, "409");
+        final AtomicInteger attempts = new AtomicInteger();
+
+        assertEquals("Wrong result", "done", policy.execute(() -> {
+            if (attempts.incrementAndGet() < 3) throw new MarathonException(409, "Conflict");
+            return "done";
+        }, LOGGER));
+        assertEquals("Should succeed on the third attempt", 3, attempts.get());
+
+        attempts.set(0);
+        try {
+            policy.execute(() -> {
+                attempts.incrementAndGet();
+                throw new MarathonException(404, "Not Found");
+            }, LOGGER);
+            fail("404 should be thrown");
+        } catch (MarathonException e) {
+            assertEquals("404 should not be retried", 1, attempts.get());
+        }
+    }
+
+    /**
+     * Test that the default retryable statuses retry a 503 response, as returned while Marathon elects a new leader,
+     * and that connection errors are retried as well.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testExecuteUnavailable() throws Exception {
+        final RetryPolicy   policy   = new RetryPolicy(0, 1, 1, 60000, RetryPolicy.RETRYABLE_STATUSES);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        assertEquals("Wrong result", "done", policy.execute(() -> {
+            if (attempts.incrementAndGet() == 1) throw new MarathonException(503, "Service Unavailable");
+            return "done";
+        }, LOGGER));
+        assertEquals("503 should be retried", 2, attempts.get());
+
+        attempts.set(0);
+        assertEquals("Wrong result", "done", policy.execute(() -> {
+            if (attempts.incrementAndGet() == 1) throw new UncheckedIOException(new ConnectException("Connection refused"));
+            return "done";
+        }, LOGGER));
+        assertEquals("Connection errors should be retried", 2, attempts.get());
+
+        attempts.set(0);
+        try {
+            policy.execute(() -> {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("bug");
+            }, LOGGER);
+            fail("IllegalStateException should be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("Other runtime exceptions should not be retried", 1, attempts.get());
+        }
+    }
+
+    /**
+     * Test that retries stop when the attempts or the time budget are used up.
+     *
+     * @throws Exception when something unexpected happens
+     */
+    @Test
+    public void testExecuteLimits() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            new RetryPolicy(4, 1, 1, 60000, "409").execute(() -> {
+                attempts.incrementAndGet();
+                throw new MarathonException(409, "Conflict");
+            }, LOGGER);
+            fail("409 should be thrown");
+        } catch (MarathonException e) {
+            assertEquals("Should stop after the maximum attempts", 4, attempts.get());
+        }
+
+        attempts.set(0);
+        try {
+            new RetryPolicy(100, 1000, 1000, 0, "409").execute(() -> {
+                attempts.incrementAndGet();
+                throw new MarathonException(409, "Conflict");
+            }, LOGGER);
+            fail("409 should be thrown");
+        } catch (MarathonException e) {
+            assertTrue("Should stop when the time budget is used up", attempts.get() < 100);
+        }
+    }
+}